@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+class ClassInfo {
+
+    /** Rough heap footprint for the memory budget, without fields and name. */
+    static final int ESTIMATED_SIZE = 128;
+
+    long superid;
+    int isize;
+    /** class name, cached on first lookup */
+    String name;
+    /** length of the field values of an instance, supers included; -1 until computed */
+    int fieldBytes = -1;
+    /** shallow size of an instance under the object layout; -1 until computed */
+    int size = -1;
+    List<FieldSpec> fieldSpec;
+    boolean weakReference;
+    /** java.lang.ref.Reference itself, which declares the referent field */
+    boolean referenceClass;
+    long count;
+    long bytes;
+    int diffKey = -1;
+    boolean collectionChecked;
+    CollectionStats.Layout collection;
+
+    public ClassInfo(long superid, int isize) {
+        this.superid = superid;
+        this.isize = isize;
+    }
+
+    public void addFieldSpec(FieldSpec fs) {
+        if (fieldSpec == null) {
+            fieldSpec = new ArrayList<>();
+        }
+        fieldSpec.add(fs);
+    }
+
+    public String toString() {
+        //"ClassInfo {${Long.toHexString(superid)}, ${isize}, ${fieldSpec}}"
+        StringBuilder sb = new StringBuilder();
+        sb.append("ClassInfo {" + Long.toHexString(superid) + ", " + isize + ", ");
+        if (fieldSpec != null) {
+            for (Iterator<FieldSpec> i = fieldSpec.iterator(); i.hasNext();) {
+                sb.append(i.next().toString());
+                if (i.hasNext()) {
+                    sb.append(", ");
+                }
+            }
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Instance field layouts of classes kept in a file across runs, for
+ * converting many dumps of the same application build (-layout_cache).
+ *
+ * A layout is keyed by a hash of the class name and of its declared
+ * instance fields, names and types in dump order.  The file is mapped and
+ * only the entry headers are read when it is opened.  A CLASS_DUMP whose
+ * name and fields match a cached layout byte for byte takes the class name
+ * and FieldSpec list of that layout, created once per process and shared
+ * by every dump of the run, instead of decoding them again.  New layouts
+ * are added, and the file is rewritten sorted by key at the end of the
+ * run, so the same set of dumps always leaves the same file.
+ *
+ * An entry is: u8 key, u2 name length, name, u2 field count, then per
+ * field u1 type, u2 name length, name.
+ */
+class ClassLayoutCache {
+    private static final Logger logger = Logger.getLogger(ClassLayoutCache.class.getName());
+    private static final int MAGIC = 0x48504c43; // HPLC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final File file;
+    private final LongIntHashMap index = new LongIntHashMap();
+    private final List<ByteBuffer> entries = new ArrayList<>();
+    private final List<String> classNames = new ArrayList<>();
+    private final List<List<FieldSpec>> fieldSpecs = new ArrayList<>();
+    private int loaded;
+    private int hits;
+
+    private ClassLayoutCache(File file) {
+        this.file = file;
+    }
+
+    /** Opens the cache in file; a missing or unreadable file gives an empty cache. */
+    static ClassLayoutCache open(File file) {
+        ClassLayoutCache c = new ClassLayoutCache(file);
+        if (!file.exists()) {
+            return c;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                logger.warning(file + " is not a class layout cache of this version; it will be rewritten");
+                return c;
+            }
+            int n = map.getInt(8);
+            int p = HEADER_SIZE;
+            for (int i = 0; i < n; i++) {
+                int end = p + 8;
+                end += 2 + (map.getShort(end) & 0xffff);
+                int nFields = map.getShort(end) & 0xffff;
+                end += 2;
+                for (int f = 0; f < nFields; f++) {
+                    end += 3 + (map.getShort(end + 1) & 0xffff);
+                }
+                ByteBuffer b = map.duplicate();
+                b.limit(end).position(p);
+                c.addEntry(map.getLong(p), b.slice());
+                p = end;
+            }
+            c.loaded = n;
+        } catch (IOException | RuntimeException e) {
+            logger.warning("cannot read " + file + ": " + e + "; starting with an empty class layout cache");
+            c.index.clear();
+            c.entries.clear();
+            c.classNames.clear();
+            c.fieldSpecs.clear();
+        }
+        return c;
+    }
+
+    private int addEntry(long key, ByteBuffer data) {
+        int e = entries.size();
+        entries.add(data);
+        classNames.add(null);
+        fieldSpecs.add(null);
+        index.put(key, e);
+        return e;
+    }
+
+    static long key(byte[] className, byte[][] fieldNames, byte[] types) {
+        // FNV-1a; names are modified UTF-8, which has no 0 bytes to separate them
+        long h = 0xcbf29ce484222325L;
+        h = hash(h, className);
+        for (int i = 0; i < types.length; i++) {
+            h = (h ^ types[i]) * 0x100000001b3L;
+            h = hash(h, fieldNames[i]);
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static long hash(long h, byte[] b) {
+        for (byte x : b) {
+            h = (h ^ (x & 0xff)) * 0x100000001b3L;
+        }
+        // and a 0 byte to end the name
+        return h * 0x100000001b3L;
+    }
+
+    /** Returns the entry of the layout matching the class, or -1. */
+    int find(long key, byte[] className, byte[][] fieldNames, byte[] types) {
+        int e = index.get(key);
+        if (e < 0 || !matches(entries.get(e), className, fieldNames, types)) {
+            return -1;
+        }
+        hits++;
+        return e;
+    }
+
+    private static boolean matches(ByteBuffer b, byte[] className, byte[][] fieldNames, byte[] types) {
+        int p = 8;
+        if (!bytesAt(b, p, className)) {
+            return false;
+        }
+        p += 2 + className.length;
+        if ((b.getShort(p) & 0xffff) != types.length) {
+            return false;
+        }
+        p += 2;
+        for (int i = 0; i < types.length; i++) {
+            if (b.get(p) != types[i] || !bytesAt(b, p + 1, fieldNames[i])) {
+                return false;
+            }
+            p += 3 + fieldNames[i].length;
+        }
+        return true;
+    }
+
+    /** Returns true if b holds the u2 length prefixed bytes s at p. */
+    private static boolean bytesAt(ByteBuffer b, int p, byte[] s) {
+        if ((b.getShort(p) & 0xffff) != s.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length; i++) {
+            if (b.get(p + 2 + i) != s[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the layout of a class, whose fields were just created, and returns its entry. */
+    int add(long key, byte[] className, byte[][] fieldNames, byte[] types, String name, List<FieldSpec> specs) {
+        if (index.get(key) >= 0) {
+            // a hash collision; the first layout keeps the key
+            return -1;
+        }
+        int len = 8 + 2 + className.length + 2;
+        for (byte[] f : fieldNames) {
+            len += 3 + f.length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(len);
+        b.putLong(key).putShort((short) className.length).put(className).putShort((short) types.length);
+        for (int i = 0; i < types.length; i++) {
+            b.put(types[i]).putShort((short) fieldNames[i].length).put(fieldNames[i]);
+        }
+        b.flip();
+        int e = addEntry(key, b);
+        classNames.set(e, name);
+        fieldSpecs.set(e, specs);
+        return e;
+    }
+
+    String className(int e) {
+        if (classNames.get(e) == null) {
+            classNames.set(e, string(entries.get(e), 8));
+        }
+        return classNames.get(e);
+    }
+
+    /** Returns the fields of a layout, null if it has none like ClassInfo.fieldSpec. */
+    List<FieldSpec> fieldSpecs(int e) {
+        ByteBuffer b = entries.get(e);
+        int p = 8 + 2 + (b.getShort(8) & 0xffff);
+        int n = b.getShort(p) & 0xffff;
+        if (n == 0) {
+            return null;
+        }
+        if (fieldSpecs.get(e) == null) {
+            List<FieldSpec> specs = new ArrayList<>(n);
+            p += 2;
+            for (int i = 0; i < n; i++) {
+                specs.add(new FieldSpec(b.get(p), string(b, p + 1)));
+                p += 3 + (b.getShort(p + 1) & 0xffff);
+            }
+            fieldSpecs.set(e, Collections.unmodifiableList(specs));
+        }
+        return fieldSpecs.get(e);
+    }
+
+    private static String string(ByteBuffer b, int p) {
+        byte[] s = new byte[b.getShort(p) & 0xffff];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = b.get(p + 2 + i);
+        }
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    int hits() {
+        return hits;
+    }
+
+    /** Writes the cache back if layouts were added; the file is replaced in one rename. */
+    void save() {
+        if (entries.size() == loaded) {
+            return;
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(entries.get(a).getLong(0), entries.get(b).getLong(0));
+            }
+        });
+        // a unique name, so that concurrent runs sharing the cache do not write into each other's file
+        File tmp;
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        } catch (IOException ioe) {
+            logger.warning("cannot create a temporary file next to " + file + ": " + ioe);
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).flip();
+            ch.write(header);
+            for (int e : order) {
+                ByteBuffer b = entries.get(e).duplicate();
+                b.clear();
+                while (b.hasRemaining()) {
+                    ch.write(b);
+                }
+            }
+        } catch (IOException ioe) {
+            logger.warning("cannot write " + tmp + ": " + ioe);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            logger.warning("cannot replace " + file + " by " + tmp);
+            tmp.delete();
+        }
+    }
+}
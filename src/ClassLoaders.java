@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+/**
+ * Classes grouped by their defining loader, for finding class loader leaks
+ * (-class_loaders).
+ *
+ * Pass 1 appends the class and loader id of every CLASS_DUMP.  group() then
+ * turns the pairs into a multimap without boxing: loaders get dense indexes
+ * through a LongIntHashMap and the class ids of loader i are classIds[start[i]]
+ * up to classIds[start[i + 1]], placed by a counting sort.  The bootstrap
+ * loader is id 0.
+ */
+class ClassLoaders {
+    private long[] pairClass = new long[1024];
+    private long[] pairLoader = new long[1024];
+    private int nPairs;
+
+    private final LongIntHashMap loaderIndex = new LongIntHashMap();
+    private long[] loaderIds;
+    private int nLoaders;
+    private int[] start;
+    private long[] classIds;
+
+    void add(long classId, long loaderId) {
+        if (nPairs == pairClass.length) {
+            pairClass = Arrays.copyOf(pairClass, nPairs * 2);
+            pairLoader = Arrays.copyOf(pairLoader, nPairs * 2);
+        }
+        pairClass[nPairs] = classId;
+        pairLoader[nPairs] = loaderId;
+        nPairs++;
+    }
+
+    /** Builds the multimap from the pairs added; loaders keep the order they were first seen in. */
+    void group() {
+        loaderIds = new long[16];
+        int[] loaderOf = new int[nPairs];
+        int[] count = new int[16];
+        int boot = -1;
+        for (int p = 0; p < nPairs; p++) {
+            long l = pairLoader[p];
+            // LongIntHashMap cannot hold key 0
+            int li = l == 0 ? boot : loaderIndex.get(l);
+            if (li < 0) {
+                li = nLoaders++;
+                if (li == loaderIds.length) {
+                    loaderIds = Arrays.copyOf(loaderIds, li * 2);
+                    count = Arrays.copyOf(count, li * 2);
+                }
+                loaderIds[li] = l;
+                if (l == 0) {
+                    boot = li;
+                } else {
+                    loaderIndex.put(l, li);
+                }
+            }
+            loaderOf[p] = li;
+            count[li]++;
+        }
+        start = new int[nLoaders + 1];
+        for (int i = 0; i < nLoaders; i++) {
+            start[i + 1] = start[i] + count[i];
+        }
+        int[] fill = Arrays.copyOf(start, nLoaders);
+        classIds = new long[nPairs];
+        for (int p = 0; p < nPairs; p++) {
+            classIds[fill[loaderOf[p]]++] = pairClass[p];
+        }
+        pairClass = null;
+        pairLoader = null;
+    }
+
+    int loaderCount() {
+        return nLoaders;
+    }
+
+    long loaderId(int i) {
+        return loaderIds[i];
+    }
+
+    int classCount(int i) {
+        return start[i + 1] - start[i];
+    }
+
+    long classId(int i, int j) {
+        return classIds[start[i] + j];
+    }
+
+    int totalClasses() {
+        return classIds.length;
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fill ratio of collection instances.
+ *
+ * Collections are registered in pass 1 with their element count and the id
+ * of their backing array.  Pass 2 resolves the array lengths from the
+ * OBJ_ARRAY_DUMP records and the first field referring to each collection,
+ * using primitive maps keyed by object id.
+ *
+ * The size of a ConcurrentHashMap is its baseCount plus the values of its
+ * counterCells, which take the updates made under contention.  The cells
+ * are read in pass 1 and added when pass 2 reaches the counterCells array.
+ */
+class CollectionStats {
+    /** max. number of rows of the per owner summary */
+    static final int OWNER_ROWS = 50;
+    static final String COUNTER_CELL = "java.util.concurrent.ConcurrentHashMap$CounterCell";
+
+    /** Known collection classes: class name, backing array field, element count field. */
+    static final String[][] KNOWN = {
+        { "java.util.HashMap", "table", "size" },
+        { "java.util.Hashtable", "table", "count" },
+        { "java.util.WeakHashMap", "table", "size" },
+        { "java.util.concurrent.ConcurrentHashMap", "table", "baseCount" },
+        { "java.util.ArrayList", "elementData", "size" },
+        { "java.util.Vector", "elementData", "elementCount" },
+    };
+
+    /** Field offsets of a collection class, relative to the instance field values. */
+    static class Layout {
+        final int classKey;
+        final int arrayOffset;
+        final int sizeOffset;
+        final byte sizeType;
+        /** offset of counterCells of a ConcurrentHashMap, else -1 */
+        final int cellsOffset;
+        /** true for ConcurrentHashMap$CounterCell, whose value is at sizeOffset */
+        final boolean counterCell;
+
+        Layout(int classKey, int arrayOffset, int sizeOffset, byte sizeType, int cellsOffset, boolean counterCell) {
+            this.classKey = classKey;
+            this.arrayOffset = arrayOffset;
+            this.sizeOffset = sizeOffset;
+            this.sizeType = sizeType;
+            this.cellsOffset = cellsOffset;
+            this.counterCell = counterCell;
+        }
+    }
+
+    private final LongIntHashMap ords = new LongIntHashMap();
+    private final LongIntHashMap arrays = new LongIntHashMap();
+    private int n;
+    private int[] classes = new int[256];
+    private int[] sizes = new int[256];
+    private int[] capacities = new int[256];  // -1: array not found, 0: no array
+    private int[] owners = new int[256];
+
+    private final LongIntHashMap cellArrays = new LongIntHashMap();
+    private final LongIntHashMap cellIndex = new LongIntHashMap();
+    private long[] cellValues = new long[64];
+    private int nCells;
+
+    private final List<String> classNames = new ArrayList<>();
+    private final Map<String,Integer> classKeys = new HashMap<>();
+    private final List<String> ownerNames = new ArrayList<>();
+    private final Map<String,Integer> ownerKeys = new HashMap<>();
+
+    int classKey(String name) {
+        return key(name, classNames, classKeys);
+    }
+
+    int ownerKey(String name) {
+        return key(name, ownerNames, ownerKeys);
+    }
+
+    private static int key(String name, List<String> names, Map<String,Integer> keys) {
+        Integer k = keys.get(name);
+        if (k == null) {
+            k = names.size();
+            names.add(name);
+            keys.put(name, k);
+        }
+        return k;
+    }
+
+    /** Registers a collection instance seen in pass 1. */
+    void add(long id, int classKey, long size, long arrayId, long cellsId) {
+        if (n == classes.length) {
+            int len = n * 2;
+            classes = Arrays.copyOf(classes, len);
+            sizes = Arrays.copyOf(sizes, len);
+            capacities = Arrays.copyOf(capacities, len);
+            owners = Arrays.copyOf(owners, len);
+        }
+        classes[n] = classKey;
+        sizes[n] = (int) Math.min(size, Integer.MAX_VALUE);
+        capacities[n] = arrayId == 0 ? 0 : -1;
+        owners[n] = -1;
+        ords.put(id, n);
+        if (arrayId != 0) {
+            arrays.put(arrayId, n);
+        }
+        if (cellsId != 0) {
+            cellArrays.put(cellsId, n);
+        }
+        n++;
+    }
+
+    /** Notes the value of a CounterCell seen in pass 1. */
+    void counterCell(long id, long value) {
+        if (nCells == cellValues.length) {
+            cellValues = Arrays.copyOf(cellValues, nCells * 2);
+        }
+        cellValues[nCells] = value;
+        cellIndex.put(id, nCells++);
+    }
+
+    /** Returns the collection whose counterCells array is arrayId, or -1. */
+    int cellArrayOwner(long arrayId) {
+        return cellArrays.get(arrayId);
+    }
+
+    /** Adds the value of the CounterCell cellId to the size of collection o. */
+    void addCell(int o, long cellId) {
+        int c = cellIndex.get(cellId);
+        if (c >= 0) {
+            sizes[o] = (int) Math.max(0, Math.min((long) sizes[o] + cellValues[c], Integer.MAX_VALUE));
+        }
+    }
+
+    int count() {
+        return n;
+    }
+
+    /** Notes a reference to targetId held by the field (or array class) ownerKey. */
+    void owner(long targetId, int ownerKey) {
+        int o = ords.get(targetId);
+        if (o >= 0 && owners[o] < 0) {
+            owners[o] = ownerKey;
+        }
+    }
+
+    /** Resolves the capacity of the collection backed by arrayId, if any. */
+    void arrayLength(long arrayId, int length) {
+        int o = arrays.remove(arrayId);
+        if (o >= 0) {
+            capacities[o] = length;
+        }
+    }
+
+    /**
+     * Prints the per class and per owner summaries.
+     *
+     * @param slotSize size of one reference slot of the backing array
+     * @param arrayHeader shallow size of an empty object array
+     */
+    void print(int slotSize, long arrayHeader) {
+        // count, empty, no array, elements, slots, wasted slots, wasted bytes
+        Map<String,long[]> byClass = new HashMap<>();
+        Map<String,long[]> byOwner = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            String cname = classNames.get(classes[i]);
+            String owner = (owners[i] < 0 ? "<no referrer found>" : ownerNames.get(owners[i])) + "  " + cname;
+            accumulate(byClass, cname, i, slotSize, arrayHeader);
+            accumulate(byOwner, owner, i, slotSize, arrayHeader);
+        }
+        System.out.println("Collections by class");
+        printTable(byClass, "class name", Integer.MAX_VALUE);
+        System.out.println("Collections by owner field, by wasted bytes");
+        printTable(byOwner, "owner field  collection class", OWNER_ROWS);
+    }
+
+    private void accumulate(Map<String,long[]> m, String key, int i, int slotSize, long arrayHeader) {
+        long[] v = m.get(key);
+        if (v == null) {
+            v = new long[7];
+            m.put(key, v);
+        }
+        int cap = Math.max(capacities[i], 0);
+        long wastedSlots = Math.max(cap - sizes[i], 0);
+        v[0]++;
+        if (sizes[i] == 0) {
+            v[1]++;
+        }
+        if (capacities[i] == 0) {
+            v[2]++;
+        }
+        v[3] += sizes[i];
+        v[4] += cap;
+        v[5] += wastedSlots;
+        if (sizes[i] == 0 && cap > 0) {
+            v[6] += arrayHeader + (long) cap * slotSize;
+        } else {
+            v[6] += wastedSlots * slotSize;
+        }
+    }
+
+    private static void printTable(final Map<String,long[]> m, String title, int limit) {
+        List<String> keys = new ArrayList<>(m.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = Long.compare(m.get(b)[6], m.get(a)[6]);
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        System.out.println("     count     empty  no array    elements       slots   wasted slots  wasted bytes  fill  " + title);
+        System.out.println("--------------------------------------------------------------------------------------------------------");
+        for (int i = 0; i < keys.size() && i < limit; i++) {
+            String k = keys.get(i);
+            long[] v = m.get(k);
+            String fill = v[4] == 0 ? "   -" : String.format("%3d%%", v[3] * 100 / v[4]);
+            System.out.printf("%10d %9d %9d %11d %11d %14d %13d  %s  %s\n", v[0], v[1], v[2], v[3], v[4], v[5], v[6], fill, k);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Counts repeated primitive array contents in bounded memory.
+ *
+ * Contents are identified by a 64-bit hash computed over the dump buffer
+ * in place.  A Bloom filter remembers contents seen once; only contents
+ * seen again are admitted to the exact table, so the many unique arrays of
+ * a heap never occupy a table slot.  The filter is sized from the number of
+ * arrays the table will see, 32 bits each, so that a unique content is
+ * taken for one seen before about once in 100000.  It is capped at 2^32
+ * bits and at what is left of the duplicates share of the memory budget;
+ * a capped filter admits more unique contents, about once in 1400 at 16
+ * bits per array.  An admitted content counts two copies, the one seen
+ * before and this one, and every exact hit after that adds one.  When the
+ * exact table is full, further new duplicates are only counted as
+ * untracked.
+ */
+class DuplicateTable {
+    private static final Logger logger = Logger.getLogger(DuplicateTable.class.getName());
+    private static final int HASHES = 7;
+    private static final int BITS_PER_CONTENT = 32;
+    private static final long MAX_BITS = 1L << 32;
+
+    private final long[] seen;
+    private final long seenMask;
+    private final MemoryBudget budget;
+    private final long filterBytes;
+    private final long tableBytes;
+
+    private final long[] keys;
+    private final int[] counts;
+    private final long[] positions;   // content position of one copy, for previews
+    private final int[] lengths;
+    private final long[] sizes;       // shallow size of one copy
+    private final byte[] types;
+    private String[] previews;        // only for input that cannot be read again
+    private final int mask;
+    private final int maxEntries;
+    private int entries;
+    private long untracked;
+
+    /**
+     * @param maxEntries capacity of the exact table
+     * @param expectedContents number of arrays that may be added
+     * @param budget charged for the exact table; the filter takes what it can
+     */
+    DuplicateTable(int maxEntries, long expectedContents, MemoryBudget budget) {
+        // no more contents can be admitted than arrays are added
+        this.maxEntries = (int) Math.min(maxEntries, Math.max(16, expectedContents));
+        this.budget = budget;
+        int cap = 16;
+        while (cap < this.maxEntries * 2) {
+            cap <<= 1;
+        }
+        keys = new long[cap];
+        counts = new int[cap];
+        positions = new long[cap];
+        lengths = new int[cap];
+        sizes = new long[cap];
+        types = new byte[cap];
+        mask = cap - 1;
+        tableBytes = (long) cap * 33;
+        budget.charge(MemoryBudget.DUPLICATES, tableBytes);
+        long want = 64;
+        while (want < expectedContents * BITS_PER_CONTENT && want < MAX_BITS) {
+            want <<= 1;
+        }
+        long bits = want;
+        while (bits > 64 && !budget.reserve(MemoryBudget.DUPLICATES, bits >>> 3)) {
+            bits >>>= 1;
+        }
+        if (bits == 64) {
+            budget.charge(MemoryBudget.DUPLICATES, bits >>> 3);
+        }
+        if (bits < want) {
+            logger.info("duplicate filter of " + (bits >>> 13) + " KB instead of " + (want >>> 13)
+                    + " KB for " + expectedContents + " arrays, to fit the memory budget; more unique arrays are admitted");
+        }
+        filterBytes = bits >>> 3;
+        seen = new long[(int) (bits >>> 6)];
+        seenMask = bits - 1;
+    }
+
+    /** Returns the memory taken from the budget. */
+    void release() {
+        budget.release(MemoryBudget.DUPLICATES, filterBytes + tableBytes);
+    }
+
+    /**
+     * Hashes len bytes of b starting at absolute position pos without
+     * changing the buffer position or copying the data.
+     */
+    static long contentHash(HprofBuffer b, long pos, long len) {
+        long h = 0x9e3779b97f4a7c15L ^ len;
+        long end = pos + len;
+        long i = pos;
+        for (; i + 8 <= end; i += 8) {
+            h = Long.rotateLeft(h ^ (b.getLong(i) * 0xc2b2ae3d27d4eb4fL), 31) * 0x9e3779b97f4a7c15L;
+        }
+        long tail = 0;
+        for (; i < end; i++) {
+            tail = (tail << 8) | (b.get(i) & 0xff);
+        }
+        h ^= tail * 0x165667b19e3779f9L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Records one copy of a content.
+     *
+     * @param hash content hash from contentHash()
+     * @param type primitive element type
+     * @param length number of elements
+     * @param size shallow size attributed to one copy
+     * @param position absolute position of the content in the dump buffer
+     * @return the slot if the content has just been admitted, or -1
+     */
+    int add(long hash, byte type, int length, long size, long position) {
+        long key = hash ^ ((long) type << 56) ^ ((long) length * 0x9e3779b97f4a7c15L);
+        if (key == 0) {
+            key = 1;
+        }
+        int i = LongIntHashMap.mix(key) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                counts[i]++;
+                return -1;
+            }
+        }
+        // double hashing: bit d is h1 + d * h2
+        long h1 = mix64(key);
+        long h2 = mix64(h1) | 1;
+        boolean seenBefore = true;
+        for (int d = 0; d < HASHES; d++) {
+            long bit = (h1 + d * h2) & seenMask;
+            int w = (int) (bit >>> 6);
+            long m = 1L << bit;
+            if ((seen[w] & m) == 0) {
+                seenBefore = false;
+                seen[w] |= m;
+            }
+        }
+        if (!seenBefore) {
+            return -1;
+        }
+        if (entries == maxEntries) {
+            untracked++;
+            return -1;
+        }
+        keys[i] = key;
+        counts[i] = 2;
+        positions[i] = position;
+        lengths[i] = length;
+        sizes[i] = size;
+        types[i] = type;
+        entries++;
+        return i;
+    }
+
+    private static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    void setPreview(int slot, String preview) {
+        if (previews == null) {
+            previews = new String[keys.length];
+        }
+        previews[slot] = preview;
+    }
+
+    /** Returns the preview kept by setPreview(), or null. */
+    String preview(int slot) {
+        return previews == null ? null : previews[slot];
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    long untracked() {
+        return untracked;
+    }
+
+    /** Returns slot indexes of duplicated contents, largest waste first. */
+    List<Integer> ranked() {
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && counts[i] > 1) {
+                slots.add(i);
+            }
+        }
+        Collections.sort(slots, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(wasted(b), wasted(a));
+                return c != 0 ? c : Long.compare(positions[a], positions[b]);
+            }
+        });
+        return slots;
+    }
+
+    long wasted(int slot) {
+        return (counts[slot] - 1) * sizes[slot];
+    }
+
+    long totalWasted() {
+        long total = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && counts[i] > 1) {
+                total += wasted(i);
+            }
+        }
+        return total;
+    }
+
+    int count(int slot) {
+        return counts[slot];
+    }
+
+    long size(int slot) {
+        return sizes[slot];
+    }
+
+    int length(int slot) {
+        return lengths[slot];
+    }
+
+    byte type(int slot) {
+        return types[slot];
+    }
+
+    long position(int slot) {
+        return positions[slot];
+    }
+}
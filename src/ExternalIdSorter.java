@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sorts a stream of (object id, class key, size) entries by id without
+ * holding them all in memory.  The class key and size share one long: 24
+ * bits of key and 40 of size.  Entries are buffered, radix sorted and
+ * spilled to temporary run files; finish() returns a cursor merging the
+ * runs in unsigned id order.
+ */
+class ExternalIdSorter {
+    private static final int DEFAULT_RUN_SIZE = 4 * 1024 * 1024;
+    private static final int SIZE_BITS = 40;
+    private static final long SIZE_MASK = (1L << SIZE_BITS) - 1;
+    static final int MAX_CLASS_KEYS = 1 << (64 - SIZE_BITS);
+
+    private final int runSize;
+    private long[] ids;
+    private long[] meta;
+    private int n;
+    private final List<File> runs = new ArrayList<>();
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+
+    ExternalIdSorter() {
+        this(DEFAULT_RUN_SIZE);
+    }
+
+    ExternalIdSorter(int runSize) {
+        this.runSize = runSize;
+        ids = new long[Math.min(runSize, 1024)];
+        meta = new long[ids.length];
+    }
+
+    void add(long id, int classKey, long size) {
+        if (classKey >= MAX_CLASS_KEYS) {
+            throw new IllegalStateException("too many classes to sort (" + classKey + ")");
+        }
+        if (n == ids.length) {
+            if (n == runSize) {
+                spill();
+            } else {
+                int len = (int) Math.min(runSize, 2L * n);
+                ids = java.util.Arrays.copyOf(ids, len);
+                meta = java.util.Arrays.copyOf(meta, len);
+            }
+        }
+        ids[n] = id;
+        meta[n] = ((long) classKey << SIZE_BITS) | Math.min(size, SIZE_MASK);
+        n++;
+    }
+
+    private void sortBuffer() {
+        RadixSort.sort(ids, meta, n, new long[n], new long[n]);
+    }
+
+    private void spill() {
+        sortBuffer();
+        try {
+            File f = File.createTempFile("hprofids", ".run");
+            f.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+            try {
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(ids[i]);
+                    out.writeLong(meta[i]);
+                }
+            } finally {
+                out.close();
+            }
+            runs.add(f);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("cannot spill sorted ids: " + ioe.getMessage(), ioe);
+        }
+        n = 0;
+    }
+
+    /** Returns a cursor over all entries in unsigned id order. */
+    Cursor finish() throws IOException {
+        if (runs.isEmpty()) {
+            sortBuffer();
+            return new Cursor(null, ids, meta, n);
+        }
+        if (n > 0) {
+            spill();
+        }
+        ids = null;
+        meta = null;
+        DataInputStream[] ins = new DataInputStream[runs.size()];
+        for (int i = 0; i < ins.length; i++) {
+            ins[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), 1 << 16));
+            openRuns.add(ins[i]);
+        }
+        return new Cursor(ins, null, null, 0);
+    }
+
+    /** Releases the temporary run files. */
+    void close() {
+        for (DataInputStream in : openRuns) {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+        for (File f : runs) {
+            f.delete();
+        }
+        openRuns.clear();
+        runs.clear();
+    }
+
+    static class Cursor {
+        private final DataInputStream[] ins;
+        private final long[] headId;
+        private final long[] headMeta;
+        private final boolean[] live;
+        private final long[] memIds;
+        private final long[] memMeta;
+        private final int memSize;
+        private int memPos;
+        private long id;
+        private long meta;
+
+        Cursor(DataInputStream[] ins, long[] memIds, long[] memMeta, int memSize) throws IOException {
+            this.ins = ins;
+            this.memIds = memIds;
+            this.memMeta = memMeta;
+            this.memSize = memSize;
+            if (ins != null) {
+                headId = new long[ins.length];
+                headMeta = new long[ins.length];
+                live = new boolean[ins.length];
+                for (int i = 0; i < ins.length; i++) {
+                    advance(i);
+                }
+            } else {
+                headId = null;
+                headMeta = null;
+                live = null;
+            }
+        }
+
+        private void advance(int i) throws IOException {
+            try {
+                headId[i] = ins[i].readLong();
+                headMeta[i] = ins[i].readLong();
+                live[i] = true;
+            } catch (EOFException eof) {
+                live[i] = false;
+            }
+        }
+
+        /** Moves to the next entry; returns false at the end. */
+        boolean next() throws IOException {
+            if (ins == null) {
+                if (memPos == memSize) {
+                    return false;
+                }
+                id = memIds[memPos];
+                meta = memMeta[memPos];
+                memPos++;
+                return true;
+            }
+            // the number of runs is small, so a linear scan beats a heap
+            int min = -1;
+            for (int i = 0; i < ins.length; i++) {
+                if (live[i] && (min < 0 || Long.compareUnsigned(headId[i], headId[min]) < 0)) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                return false;
+            }
+            id = headId[min];
+            meta = headMeta[min];
+            advance(min);
+            return true;
+        }
+
+        long id() {
+            return id;
+        }
+
+        int classKey() {
+            return (int) (meta >>> SIZE_BITS);
+        }
+
+        long size() {
+            return meta & SIZE_MASK;
+        }
+    }
+}
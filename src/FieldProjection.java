@@ -0,0 +1,132 @@
+/**
+ * A -fields request: some instance fields of the instances of a class,
+ * written as tab separated values.
+ *
+ * A projection is bound once per matching class after pass 1, which turns
+ * the field names into byte offsets within the INSTANCE_DUMP field values.
+ * In pass 2 a row is then produced by a few absolute reads; the remaining
+ * fields are never decoded.
+ */
+class FieldProjection {
+    final String className;
+    final String[] fields;
+
+    FieldProjection(String className, String[] fields) {
+        this.className = className;
+        this.fields = fields;
+    }
+
+    /** Parses "class:field1,field2". */
+    static FieldProjection parse(String spec) {
+        int colon = spec.lastIndexOf(':');
+        if (colon <= 0 || colon == spec.length() - 1) {
+            throw new IllegalArgumentException("expected class:field[,field...] but got " + spec);
+        }
+        String[] fields = spec.substring(colon + 1).split(",");
+        for (String f : fields) {
+            if (f.length() == 0) {
+                throw new IllegalArgumentException("empty field name in " + spec);
+            }
+        }
+        return new FieldProjection(spec.substring(0, colon), fields);
+    }
+
+    String header() {
+        StringBuilder sb = new StringBuilder("class\tid");
+        for (String f : fields) {
+            sb.append('\t').append(f);
+        }
+        return sb.toString();
+    }
+
+    /** Field offsets and types of a projection in one class; offset -1 for a missing field. */
+    static class Binding {
+        final String className;
+        final int[] offsets;
+        final byte[] types;
+
+        Binding(String className, int n) {
+            this.className = className;
+            this.offsets = new int[n];
+            this.types = new byte[n];
+        }
+    }
+
+    /**
+     * Appends the row of one instance to sb.
+     *
+     * @param fieldsPos dump position of the first field value
+     */
+    static void appendRow(StringBuilder sb, Binding b, long id, HprofBuffer buf, long fieldsPos, int idSize) {
+        sb.append(b.className).append('\t').append(Long.toHexString(id));
+        for (int i = 0; i < b.offsets.length; i++) {
+            sb.append('\t');
+            if (b.offsets[i] >= 0) {
+                appendValue(sb, buf, fieldsPos + b.offsets[i], b.types[i], idSize);
+            }
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, HprofBuffer buf, long pos, byte type, int idSize) {
+        appendRaw(sb, type, readRaw(buf, pos, type, idSize));
+    }
+
+    /**
+     * Reads a field value as raw bits: object ids, integral values sign
+     * extended, float and double as their IEEE bits.
+     */
+    static long readRaw(HprofBuffer buf, long pos, byte type, int idSize) {
+        switch (type) {
+            case 2: // object
+                return idSize == 4 ? buf.getInt(pos) & 0xffffffffL : buf.getLong(pos);
+            case 4: // boolean
+            case 8: // byte
+                return buf.get(pos);
+            case 5: // char
+                return buf.getChar(pos);
+            case 9: // short
+                return buf.getShort(pos);
+            case 6: // float
+            case 10: // int
+                return buf.getInt(pos);
+            case 7: // double
+            case 11: // long
+                return buf.getLong(pos);
+            default:
+                throw new IllegalArgumentException("bad basic type " + type);
+        }
+    }
+
+    /** Appends a raw value of a basic type as it appears in a row. */
+    static void appendRaw(StringBuilder sb, byte type, long raw) {
+        switch (type) {
+            case 2: // object
+                if (raw == 0) {
+                    sb.append("null");
+                } else {
+                    sb.append(Long.toHexString(raw));
+                }
+                break;
+            case 4: // boolean
+                sb.append(raw != 0);
+                break;
+            case 5: // char
+                char c = (char) raw;
+                if (c < 0x20 || c == 0x7f) {
+                    sb.append("\\u").append(String.format("%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+                break;
+            case 6: // float
+                sb.append(Float.intBitsToFloat((int) raw));
+                break;
+            case 7: // double
+                sb.append(Double.longBitsToDouble(raw));
+                break;
+            default:
+                sb.append(raw);
+                break;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+class FieldSpec {
+    /** Rough heap footprint for the memory budget, the name included. */
+    static final int ESTIMATED_SIZE = 96;
+
+    byte type;
+    String name;
+    int ownerKey = -1;
+    /** the CollectionStats ownerKey belongs to; -layout_cache shares FieldSpecs between dumps */
+    CollectionStats ownerStats;
+
+    FieldSpec(byte ftype, String fname) {
+        type = ftype;
+        name = fname;
+    }
+
+    public String toString() {
+        return "FieldSpec{" + type + ", " + name + "}";
+    }
+}
@@ -0,0 +1,493 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * HprofBuffer over a gzip compressed dump, decompressed while it is read.
+ *
+ * HotSpot writes compressed dumps (jcmd GC.heap_dump -gz) as a series of
+ * independent gzip members, each holding one block of the dump; the first
+ * member carries the block size in a "HPROF BLOCKSIZE=" comment.  For such
+ * files the members after the first are located by their header bytes and
+ * decompressed in parallel, a few blocks ahead of the parser.  A candidate
+ * member boundary is only trusted if its member inflates to the end of the
+ * range with a matching trailer; otherwise, and for any other gzip file,
+ * the rest of the file is decompressed sequentially by GZIPInputStream.
+ *
+ * Decompressed blocks are released as soon as the position moves past
+ * them, so absolute reads must not precede the current position.  Their
+ * arrays are kept in a small pool and reused for the blocks that follow.
+ */
+class GzipHprofBuffer extends HprofBuffer {
+    private static final Logger logger = Logger.getLogger(GzipHprofBuffer.class.getName());
+    private static final String BLOCKSIZE_COMMENT = "HPROF BLOCKSIZE=";
+    private static final int SEQUENTIAL_BLOCK = 1 << 20;
+    private static final int SCAN_BUFFER = 1 << 20;
+    private static final int FHCRC = 0x02, FEXTRA = 0x04, FNAME = 0x08, FCOMMENT = 0x10;
+
+    private static class Block {
+        long start;
+        byte[] data;
+        int length;
+        long compressedStart;
+        boolean valid = true;
+
+        long end() {
+            return start + length;
+        }
+    }
+
+    private final File file;
+    private final int threads;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long compressedLength;
+
+    private int blockSize;
+    private byte[] signature;          // header of the members after the first
+    private long nextCandidate;        // compressed offset of the next member to submit, -1 at the end
+    private ExecutorService pool;
+    private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+    private InputStream sequential;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+    private long decoded;
+    private long limit = Long.MAX_VALUE;
+    private int parallelBlocks;
+
+    GzipHprofBuffer(File file, int threads) throws IOException {
+        this.file = file;
+        this.threads = Math.max(1, threads);
+        start();
+    }
+
+    private void start() throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        compressedLength = channel.size();
+        decoded = 0;
+        limit = Long.MAX_VALUE;
+        while (!blocks.isEmpty()) {
+            release(blocks.remove(0));
+        }
+        parallelBlocks = 0;
+
+        byte[] head = readCompressed(0, (int) Math.min(compressedLength, 512));
+        blockSize = parseBlockSize(head);
+        if (blockSize <= 0) {
+            startSequential(0);
+        } else {
+            // the first member tells where the second starts and what its header looks like
+            Block first = inflateMember(0, compressedLength, true);
+            if (first.valid) {
+                blocks.add(first);
+                decoded = first.end();
+                nextCandidate = first.compressedStart;
+                if (nextCandidate < compressedLength) {
+                    signature = memberHeader(nextCandidate);
+                }
+                if (nextCandidate >= compressedLength) {
+                    nextCandidate = -1;
+                } else if (signature == null) {
+                    startSequential(nextCandidate);
+                } else {
+                    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "hprof-gunzip");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    submitAhead();
+                }
+            } else {
+                startSequential(0);
+            }
+        }
+        emptyWindow(0);
+        loadWindow(0);
+    }
+
+    private void startSequential(long compressedStart) throws IOException {
+        logger.log(Level.FINE, "sequential gzip decompression from offset " + compressedStart + " of " + file);
+        channel.position(compressedStart);
+        sequential = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16), 1 << 16);
+    }
+
+    /** Returns the block size from a HotSpot first member header, or 0. */
+    private static int parseBlockSize(byte[] h) {
+        if (h.length < 10 || (h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8 || (h[3] & FCOMMENT) == 0) {
+            return 0;
+        }
+        int p = 10;
+        if ((h[3] & FEXTRA) != 0) {
+            p += 2 + ((h[p] & 0xff) | ((h[p + 1] & 0xff) << 8));
+        }
+        if ((h[3] & FNAME) != 0) {
+            while (p < h.length && h[p] != 0) {
+                p++;
+            }
+            p++;
+        }
+        StringBuilder comment = new StringBuilder();
+        while (p < h.length && h[p] != 0) {
+            comment.append((char) (h[p++] & 0xff));
+        }
+        String c = comment.toString();
+        if (!c.startsWith(BLOCKSIZE_COMMENT)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(c.substring(BLOCKSIZE_COMMENT.length()).trim());
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /** Returns the length of the gzip member header at off of h, or -1. */
+    private static int headerLength(byte[] h, int off, int len) {
+        if (len - off < 10 || (h[off] & 0xff) != 0x1f || (h[off + 1] & 0xff) != 0x8b || h[off + 2] != 8) {
+            return -1;
+        }
+        int flags = h[off + 3] & 0xff;
+        int p = off + 10;
+        if ((flags & FEXTRA) != 0) {
+            if (p + 2 > len) {
+                return -1;
+            }
+            p += 2 + ((h[p] & 0xff) | ((h[p + 1] & 0xff) << 8));
+        }
+        for (int f : new int[] { FNAME, FCOMMENT }) {
+            if ((flags & f) != 0) {
+                while (p < len && h[p] != 0) {
+                    p++;
+                }
+                p++;
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            p += 2;
+        }
+        return p <= len ? p - off : -1;
+    }
+
+    private byte[] memberHeader(long off) throws IOException {
+        byte[] h = readCompressed(off, (int) Math.min(compressedLength - off, 512));
+        int hl = headerLength(h, 0, h.length);
+        return hl < 0 ? null : Arrays.copyOf(h, hl);
+    }
+
+    private byte[] readCompressed(long off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(len);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, off + bb.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    /**
+     * Returns the offset of the next member header at or after from, or
+     * the compressed length.  The modification time is not compared.
+     */
+    private long findMember(long from) throws IOException {
+        int sl = signature.length;
+        long off = from;
+        while (off + sl <= compressedLength) {
+            byte[] b = readCompressed(off, (int) Math.min(SCAN_BUFFER, compressedLength - off));
+            for (int i = 0; i + sl <= b.length; i++) {
+                if (b[i] == signature[0] && matches(b, i)) {
+                    return off + i;
+                }
+            }
+            if (b.length < sl) {
+                break;
+            }
+            off += b.length - sl + 1;
+        }
+        return compressedLength;
+    }
+
+    private boolean matches(byte[] b, int i) {
+        for (int j = 0; j < signature.length; j++) {
+            if ((j < 4 || j > 7) && b[i + j] != signature[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void submitAhead() throws IOException {
+        while (pending.size() < threads * 2 && nextCandidate >= 0) {
+            final long from = nextCandidate;
+            final long to = findMember(from + signature.length);
+            nextCandidate = to < compressedLength ? to : -1;
+            pending.add(pool.submit(new Callable<Block>() {
+                public Block call() throws IOException {
+                    return inflateMember(from, to, false);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Inflates the member starting at from.  A speculative member must end
+     * with its trailer exactly at to.  The first member may end anywhere
+     * before to; its compressedStart is then moved to its end.
+     */
+    private Block inflateMember(long from, long to, boolean first) throws IOException {
+        Block b = new Block();
+        b.compressedStart = from;
+        int max = blockSize + 1;
+        b.data = takeArray(max);
+        long range = to - from;
+        byte[] in = readCompressed(from, (int) (first ? Math.min(range, (long) blockSize + 65536) : range));
+        int hl = headerLength(in, 0, in.length);
+        if (hl < 0) {
+            b.valid = false;
+            return b;
+        }
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(in, hl, in.length - hl);
+            while (!inf.finished() && b.length < max) {
+                int n = inf.inflate(b.data, b.length, max - b.length);
+                b.length += n;
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    if (!first || inf.needsDictionary() || in.length >= range) {
+                        break;
+                    }
+                    // the first member is larger than guessed
+                    int used = in.length - inf.getRemaining();
+                    in = readCompressed(from, (int) Math.min(range, (long) in.length * 2));
+                    inf.setInput(in, used, in.length - used);
+                }
+            }
+            int trailer = in.length - inf.getRemaining();
+            if (first && trailer + 8 > in.length && trailer + 8 <= range) {
+                in = readCompressed(from, trailer + 8);
+            }
+            if (!inf.finished() || b.length > blockSize || trailer + 8 > in.length) {
+                b.valid = false;
+                return b;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(b.data, 0, b.length);
+            ByteBuffer t = ByteBuffer.wrap(in, trailer, 8).order(ByteOrder.LITTLE_ENDIAN);
+            long storedCrc = t.getInt() & 0xffffffffL;
+            int storedSize = t.getInt();
+            b.valid = storedCrc == crc.getValue() && storedSize == b.length && (first || trailer + 8 == in.length);
+            if (first) {
+                b.compressedStart = from + trailer + 8;
+            }
+        } catch (DataFormatException dfe) {
+            b.valid = false;
+        } finally {
+            inf.end();
+        }
+        return b;
+    }
+
+    /** Returns the next decompressed block, or null at the end of the data. */
+    private Block nextBlock() {
+        try {
+            if (sequential == null && !pending.isEmpty()) {
+                Future<Block> f = pending.poll();
+                Block b = f.get();
+                if (b.valid) {
+                    submitAhead();
+                    parallelBlocks++;
+                    b.start = decoded;
+                    decoded += b.length;
+                    return b;
+                }
+                release(b);
+                logger.log(Level.INFO, "gzip member boundary at " + b.compressedStart + " of " + file
+                        + " not confirmed; decompressing the rest sequentially");
+                for (Future<Block> p : pending) {
+                    p.cancel(true);
+                }
+                pending.clear();
+                nextCandidate = -1;
+                startSequential(b.compressedStart);
+            }
+            if (sequential != null) {
+                Block b = new Block();
+                b.data = takeArray(SEQUENTIAL_BLOCK);
+                int n;
+                while (b.length < b.data.length && (n = sequential.read(b.data, b.length, b.data.length - b.length)) > 0) {
+                    b.length += n;
+                }
+                if (b.length > 0) {
+                    b.start = decoded;
+                    decoded += b.length;
+                    return b;
+                }
+                release(b);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("cannot decompress " + file + ": " + ioe.getMessage(), ioe);
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException("cannot decompress " + file + ": " + ee.getCause(), ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while decompressing " + file);
+        }
+        limit = Math.min(limit, decoded);
+        logger.log(Level.FINE, file + ": " + decoded + " bytes, " + parallelBlocks + " blocks decompressed in parallel");
+        return null;
+    }
+
+    /** Returns an array of len bytes, reusing the array of a released block if there is one. */
+    private byte[] takeArray(int len) {
+        synchronized (spare) {
+            while (!spare.isEmpty()) {
+                byte[] a = spare.poll();
+                if (a.length == len) {
+                    return a;
+                }
+            }
+        }
+        return new byte[len];
+    }
+
+    /** Gives the array of a block no longer needed back for reuse. */
+    private void release(Block b) {
+        synchronized (spare) {
+            if (b.data != null && spare.size() < threads * 2 + 2) {
+                spare.add(b.data);
+            }
+        }
+        b.data = null;
+    }
+
+    private boolean fetch() {
+        if (decoded >= limit) {
+            return false;
+        }
+        Block b = nextBlock();
+        if (b == null) {
+            return false;
+        }
+        blocks.add(b);
+        return true;
+    }
+
+    @Override
+    protected boolean loadWindow(long pos) {
+        if (!blocks.isEmpty() && pos < blocks.get(0).start) {
+            throw new IllegalStateException("compressed input cannot go back to position " + pos);
+        }
+        if (pos >= limit) {
+            emptyWindow(pos);
+            return false;
+        }
+        while (!blocks.isEmpty() && blocks.get(0).end() <= pos && blocks.get(0).end() < decoded) {
+            release(blocks.remove(0));
+        }
+        while (blocks.isEmpty() || blocks.get(blocks.size() - 1).end() <= pos) {
+            if (!fetch()) {
+                emptyWindow(pos);
+                return false;
+            }
+            if (blocks.get(0).end() <= pos) {
+                release(blocks.remove(0));
+            }
+        }
+        for (Block b : blocks) {
+            if (pos < b.end()) {
+                window = ByteBuffer.wrap(b.data, 0, (int) Math.min(b.length, limit - b.start));
+                window.position((int) (pos - b.start));
+                windowStart = b.start;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected byte byteAt(long pos) {
+        if (blocks.isEmpty() || pos < blocks.get(0).start) {
+            throw new IllegalStateException("compressed input cannot go back to position " + pos);
+        }
+        if (pos >= limit) {
+            throw new IndexOutOfBoundsException("position " + pos + " is outside of the dump");
+        }
+        while (blocks.get(blocks.size() - 1).end() <= pos) {
+            if (!fetch()) {
+                throw new IndexOutOfBoundsException("position " + pos + " is outside of the dump");
+            }
+        }
+        for (Block b : blocks) {
+            if (pos < b.end()) {
+                return b.data[(int) (pos - b.start)];
+            }
+        }
+        throw new IndexOutOfBoundsException("position " + pos + " is outside of the dump");
+    }
+
+    @Override
+    long limit() {
+        return limit;
+    }
+
+    @Override
+    void limit(long newLimit) {
+        long pos = Math.min(position(), newLimit);
+        limit = Math.min(limit, newLimit);
+        loadWindow(pos);
+    }
+
+    @Override
+    boolean randomAccess() {
+        return false;
+    }
+
+    @Override
+    void rewind() throws IOException {
+        close();
+        start();
+    }
+
+    @Override
+    void close() {
+        for (Future<Block> p : pending) {
+            p.cancel(true);
+        }
+        pending.clear();
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        sequential = null;
+        signature = null;
+        try {
+            raf.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
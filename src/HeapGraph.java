@@ -0,0 +1,359 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compact object reference graph used by the reachability queries.
+ *
+ * Objects are identified by their dense ordinal in an ObjectIndex, which
+ * also holds their class and size.  References are recorded during pass 2
+ * as ordinals in a single int array; the references of one object are
+ * contiguous and located by edgeStart/edgeCount.  The reverse graph is
+ * derived on demand.
+ */
+class HeapGraph {
+    private final ObjectIndex index;
+    private int nObjects;
+    private boolean frozen;
+
+    // per ordinal
+    private int[] edgeStart;
+    private int[] edgeCount;
+
+    private int[] edges = new int[4096];
+    private int nEdges;
+    private int current = -1;
+
+    private int[] revStart;
+    private int[] revEdges;
+
+    private int[] rootOrds = new int[256];
+    private byte[] rootKinds = new byte[256];
+    private int[] rootThreads = new int[256];
+    private int nRoots;
+
+    // scratch space reused by successive queries
+    private int[] fwdParent;
+    private int[] bwdNext;
+
+    HeapGraph(ObjectIndex index) {
+        this.index = index;
+    }
+
+    /** Allocates the per-object tables once the index is frozen. */
+    void freeze() {
+        index.freeze();
+        nObjects = index.size();
+        edgeStart = new int[nObjects];
+        edgeCount = new int[nObjects];
+        frozen = true;
+    }
+
+    int size() {
+        return nObjects;
+    }
+
+    int rootCount() {
+        return nRoots;
+    }
+
+    long id(int ord) {
+        return index.id(ord);
+    }
+
+    long shallowSize(int ord) {
+        return index.shallowSize(ord);
+    }
+
+    /** Returns the ordinal of id, or -1 if the dump has no such object. */
+    int ordinal(long id) {
+        return index.ordinal(id);
+    }
+
+    /** Starts recording the references of an object. */
+    void beginObject(long id) {
+        if (!frozen) {
+            throw new IllegalStateException("HeapGraph is not frozen");
+        }
+        current = ordinal(id);
+        if (current < 0) {
+            return;
+        }
+        edgeStart[current] = nEdges;
+        edgeCount[current] = 0;
+    }
+
+    void addReference(long targetId) {
+        if (current < 0 || targetId == 0) {
+            return;
+        }
+        int t = ordinal(targetId);
+        if (t < 0) {
+            return;
+        }
+        if (nEdges == edges.length) {
+            edges = Arrays.copyOf(edges, grow(edges.length));
+        }
+        edges[nEdges++] = t;
+        edgeCount[current]++;
+    }
+
+    void endObject() {
+        current = -1;
+    }
+
+    void addRoot(long id, byte kind, int thread) {
+        int ord = ordinal(id);
+        if (ord < 0) {
+            return;
+        }
+        if (nRoots == rootOrds.length) {
+            int len = grow(nRoots);
+            rootOrds = Arrays.copyOf(rootOrds, len);
+            rootKinds = Arrays.copyOf(rootKinds, len);
+            rootThreads = Arrays.copyOf(rootThreads, len);
+        }
+        rootOrds[nRoots] = ord;
+        rootKinds[nRoots] = kind;
+        rootThreads[nRoots] = thread;
+        nRoots++;
+    }
+
+    int rootOrd(int i) {
+        return rootOrds[i];
+    }
+
+    byte rootKind(int i) {
+        return rootKinds[i];
+    }
+
+    int rootThread(int i) {
+        return rootThreads[i];
+    }
+
+    /** Returns the index of the first root entry for ord, or -1. */
+    int findRoot(int ord) {
+        for (int i = 0; i < nRoots; i++) {
+            if (rootOrds[i] == ord) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns true if a root of this kind belongs to a thread stack. */
+    static boolean isThreadRootKind(byte kind) {
+        return kind == HprofConverter.HPROF_GC_ROOT_JAVA_FRAME || kind == HprofConverter.HPROF_GC_ROOT_JNI_LOCAL
+                || kind == HprofConverter.HPROF_GC_ROOT_THREAD_OBJ || kind == HprofConverter.HPROF_GC_ROOT_NATIVE_STACK
+                || kind == HprofConverter.HPROF_GC_ROOT_THREAD_BLOCK;
+    }
+
+    /**
+     * Marks the objects reachable from seeds by a depth first traversal.
+     * Objects set in stop are neither marked nor traversed.  The graph is
+     * only read, so several threads may mark concurrently.
+     */
+    BitSet mark(IntList seeds, BitSet stop) {
+        BitSet marked = new BitSet(nObjects);
+        IntList stack = new IntList();
+        for (int i = 0; i < seeds.size; i++) {
+            int r = seeds.data[i];
+            if (!marked.get(r) && (stop == null || !stop.get(r))) {
+                marked.set(r);
+                stack.add(r);
+            }
+        }
+        while (stack.size > 0) {
+            int u = stack.data[--stack.size];
+            int e = edgeStart[u];
+            int end = e + edgeCount[u];
+            for (; e < end; e++) {
+                int v = edges[e];
+                if (!marked.get(v) && (stop == null || !stop.get(v))) {
+                    marked.set(v);
+                    stack.add(v);
+                }
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Finds a shortest reference chain from the roots to every object at
+     * once by a breadth first search.  Roots set in skip are not started
+     * from, though other roots may still reach them.
+     *
+     * @return per ordinal the previous object of its chain, -1 for a root
+     *         started from and -2 for an object not reached
+     */
+    int[] parentsFromRoots(BitSet skip) {
+        int[] parent = new int[nObjects];
+        Arrays.fill(parent, -2);
+        IntList queue = new IntList();
+        for (int i = 0; i < nRoots; i++) {
+            int r = rootOrds[i];
+            if (parent[r] == -2 && !skip.get(r)) {
+                parent[r] = -1;
+                queue.add(r);
+            }
+        }
+        for (int head = 0; head < queue.size; head++) {
+            int u = queue.data[head];
+            int e = edgeStart[u];
+            int end = e + edgeCount[u];
+            for (; e < end; e++) {
+                int v = edges[e];
+                if (parent[v] == -2) {
+                    parent[v] = u;
+                    queue.add(v);
+                }
+            }
+        }
+        return parent;
+    }
+
+    private void buildReverse() {
+        if (revStart != null) {
+            return;
+        }
+        int n = nObjects;
+        revStart = new int[n + 1];
+        for (int i = 0; i < nEdges; i++) {
+            revStart[edges[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            revStart[i + 1] += revStart[i];
+        }
+        int[] fill = Arrays.copyOf(revStart, n);
+        revEdges = new int[nEdges];
+        for (int src = 0; src < n; src++) {
+            int e = edgeStart[src];
+            int end = e + edgeCount[src];
+            for (; e < end; e++) {
+                revEdges[fill[edges[e]]++] = src;
+            }
+        }
+    }
+
+    /**
+     * Finds a shortest reference chain from any GC root to target by a
+     * bidirectional breadth first search: forward from the roots and
+     * backward from the target, always expanding the smaller frontier.
+     *
+     * @return ordinals from the root to target, or null if target is unreachable
+     */
+    int[] shortestPathToRoot(int target) {
+        buildReverse();
+        int n = nObjects;
+        if (fwdParent == null) {
+            fwdParent = new int[n];
+            bwdNext = new int[n];
+        }
+        BitSet fwdSeen = new BitSet(n);
+        BitSet bwdSeen = new BitSet(n);
+
+        IntList fwd = new IntList();
+        for (int i = 0; i < nRoots; i++) {
+            int r = rootOrds[i];
+            if (!fwdSeen.get(r)) {
+                fwdSeen.set(r);
+                fwdParent[r] = -1;
+                fwd.add(r);
+            }
+        }
+        bwdSeen.set(target);
+        bwdNext[target] = -1;
+        if (fwdSeen.get(target)) {
+            return new int[] { target };
+        }
+        IntList bwd = new IntList();
+        bwd.add(target);
+
+        int meet = -1;
+        IntList next = new IntList();
+        while (meet < 0 && fwd.size > 0 && bwd.size > 0) {
+            next.size = 0;
+            if (fwd.size <= bwd.size) {
+                for (int i = 0; i < fwd.size && meet < 0; i++) {
+                    int u = fwd.data[i];
+                    int e = edgeStart[u];
+                    int end = e + edgeCount[u];
+                    for (; e < end; e++) {
+                        int v = edges[e];
+                        if (fwdSeen.get(v)) {
+                            continue;
+                        }
+                        fwdSeen.set(v);
+                        fwdParent[v] = u;
+                        if (bwdSeen.get(v)) {
+                            meet = v;
+                            break;
+                        }
+                        next.add(v);
+                    }
+                }
+                IntList t = fwd; fwd = next; next = t;
+            } else {
+                for (int i = 0; i < bwd.size && meet < 0; i++) {
+                    int v = bwd.data[i];
+                    for (int e = revStart[v]; e < revStart[v + 1]; e++) {
+                        int u = revEdges[e];
+                        if (bwdSeen.get(u)) {
+                            continue;
+                        }
+                        bwdSeen.set(u);
+                        bwdNext[u] = v;
+                        if (fwdSeen.get(u)) {
+                            meet = u;
+                            break;
+                        }
+                        next.add(u);
+                    }
+                }
+                IntList t = bwd; bwd = next; next = t;
+            }
+        }
+        if (meet < 0) {
+            return null;
+        }
+
+        IntList path = new IntList();
+        for (int o = meet; o >= 0; o = fwdParent[o]) {
+            path.add(o);
+        }
+        int[] result = new int[path.size];
+        for (int i = 0; i < path.size; i++) {
+            result[i] = path.data[path.size - 1 - i];
+        }
+        path.size = 0;
+        for (int o = bwdNext[meet]; o >= 0; o = bwdNext[o]) {
+            path.add(o);
+        }
+        int[] tail = Arrays.copyOf(path.data, path.size);
+        int[] full = Arrays.copyOf(result, result.length + tail.length);
+        System.arraycopy(tail, 0, full, result.length, tail.length);
+        return full;
+    }
+
+    private static int grow(int len) {
+        long n = Math.max(16, (long) len + (len >> 1));
+        if (n > Integer.MAX_VALUE - 8) {
+            n = Integer.MAX_VALUE - 8;
+            if (n <= len) {
+                throw new IllegalStateException("HeapGraph table is full (" + len + " entries)");
+            }
+        }
+        return (int) n;
+    }
+
+    static class IntList {
+        int[] data = new int[64];
+        int size;
+
+        void add(int v) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+            data[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Histogram estimated from windows of the object records of a heap dump.
+ *
+ * The object records of all heap dump records form one region.  It is cut
+ * into strata of windowBytes / fraction bytes and one window is decoded at
+ * a random offset in each stratum.  Counts are extrapolated with a ratio
+ * estimator: objects per decoded byte times the bytes of the region.  The
+ * windows are the sampling clusters, so the confidence intervals come from
+ * the spread of the per window counts around that ratio.
+ */
+class HeapSampler {
+    static final int WINDOW_BYTES = 64 * 1024;
+    private static final double Z95 = 1.96;
+
+    final double fraction;
+    final int windowBytes;
+    private final long stratumBytes;
+    private final Random random = new Random(1);
+
+    /** true once the leading class dumps and roots are passed */
+    boolean started;
+
+    private long regionBytes;
+    private long stratum;
+    private long nextWindow;
+
+    private int windows;
+    private int lostWindows;
+    private long sampledBytes;
+    private double sumB;
+    private double sumB2;
+
+    /** class id, or -type for primitive arrays, to key index */
+    private final LongIntHashMap keys = new LongIntHashMap();
+    private int[] keySlot = new int[64];
+    private int[] keySize = new int[64];
+    private int nKeys;
+
+    private final Map<String,Integer> slotsByName = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    // per slot; slot 0 is the total
+    private long[] winCount = new long[64];
+    private long[] winBytes = new long[64];
+    private double[][] sums = new double[6][64];
+    private static final int C = 0, C2 = 1, CB = 2, S = 3, S2 = 4, SB = 5;
+    private int[] touched = new int[64];
+    private int nTouched;
+
+    HeapSampler(double fraction) {
+        this.fraction = fraction;
+        this.windowBytes = WINDOW_BYTES;
+        this.stratumBytes = Math.max(windowBytes, (long) (windowBytes / fraction));
+        names.add(null);
+        nextWindow = windowOffset();
+    }
+
+    private long windowOffset() {
+        long room = stratumBytes - windowBytes;
+        return stratum * stratumBytes + (room > 0 ? (long) (random.nextDouble() * room) : 0);
+    }
+
+    /** Adds bytes of object records to the region; returns the region offset they start at. */
+    long addRegion(long bytes) {
+        long r0 = regionBytes;
+        regionBytes += bytes;
+        return r0;
+    }
+
+    /** Region offset of the next window. */
+    long nextWindow() {
+        return nextWindow;
+    }
+
+    void windowTaken() {
+        stratum++;
+        nextWindow = windowOffset();
+    }
+
+    /** Returns the index of a key, or -1 if it has not been added. */
+    int key(long key) {
+        return keys.get(key);
+    }
+
+    /**
+     * Adds a key counted under name.
+     *
+     * @param size shallow size of its objects, -1 if it varies
+     */
+    int addKey(long key, String name, int size) {
+        Integer slot = slotsByName.get(name);
+        if (slot == null) {
+            slot = names.size();
+            names.add(name);
+            slotsByName.put(name, slot);
+            if (slot == winCount.length) {
+                int len = slot * 2;
+                winCount = Arrays.copyOf(winCount, len);
+                winBytes = Arrays.copyOf(winBytes, len);
+                touched = Arrays.copyOf(touched, len);
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] = Arrays.copyOf(sums[i], len);
+                }
+            }
+        }
+        if (nKeys == keySlot.length) {
+            keySlot = Arrays.copyOf(keySlot, nKeys * 2);
+            keySize = Arrays.copyOf(keySize, nKeys * 2);
+        }
+        keySlot[nKeys] = slot;
+        keySize[nKeys] = size;
+        keys.put(key, nKeys);
+        return nKeys++;
+    }
+
+    void count(int key) {
+        count(key, keySize[key]);
+    }
+
+    void count(int key, long size) {
+        int slot = keySlot[key];
+        if (winCount[slot] == 0) {
+            touched[nTouched++] = slot;
+        }
+        winCount[slot]++;
+        winBytes[slot] += size;
+        winCount[0]++;
+        winBytes[0] += size;
+    }
+
+    /** Ends a window that decoded bytes of the region. */
+    void endWindow(long bytes) {
+        windows++;
+        sampledBytes += bytes;
+        sumB += bytes;
+        sumB2 += (double) bytes * bytes;
+        fold(0, bytes);
+        for (int i = 0; i < nTouched; i++) {
+            fold(touched[i], bytes);
+        }
+        nTouched = 0;
+    }
+
+    private void fold(int slot, long bytes) {
+        double c = winCount[slot];
+        double s = winBytes[slot];
+        sums[C][slot] += c;
+        sums[C2][slot] += c * c;
+        sums[CB][slot] += c * bytes;
+        sums[S][slot] += s;
+        sums[S2][slot] += s * s;
+        sums[SB][slot] += s * bytes;
+        winCount[slot] = 0;
+        winBytes[slot] = 0;
+    }
+
+    /** Counts a window abandoned because no object record could be found in it. */
+    void lostWindow() {
+        lostWindows++;
+    }
+
+    /** Returns the estimate and the half width of its 95% interval. */
+    private double[] estimate(int slot, int sum, int sum2, int cross) {
+        double total = sums[sum][slot];
+        if (sumB == 0) {
+            return new double[] { 0, Double.NaN };
+        }
+        double r = total / sumB;
+        double est = r * regionBytes;
+        if (windows < 2) {
+            return new double[] { est, Double.NaN };
+        }
+        double v = sums[sum2][slot] - 2 * r * sums[cross][slot] + r * r * sumB2;
+        double f = Math.min(1.0, sumB / regionBytes);
+        double se = regionBytes * Math.sqrt(Math.max(0, v) * (1 - f) * windows / (windows - 1)) / sumB;
+        return new double[] { est, Z95 * se };
+    }
+
+    void print() {
+        final double[][] count = new double[names.size()][];
+        final double[][] bytes = new double[names.size()][];
+        List<Integer> order = new ArrayList<>();
+        for (int slot = 0; slot < names.size(); slot++) {
+            count[slot] = estimate(slot, C, C2, CB);
+            bytes[slot] = estimate(slot, S, S2, SB);
+            if (slot > 0) {
+                order.add(slot);
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(bytes[b][0], bytes[a][0]);
+                return c != 0 ? c : names.get(a).compareTo(names.get(b));
+            }
+        });
+        System.out.printf("Sampled histogram: %d windows of %d bytes, %d of %d object record bytes decoded (%.2f%%)\n",
+                windows, windowBytes, sampledBytes, regionBytes, regionBytes == 0 ? 0.0 : 100.0 * sampledBytes / regionBytes);
+        if (lostWindows > 0) {
+            System.out.println(lostWindows + " windows were skipped as no object record could be found in them");
+        }
+        System.out.println("Estimates with the half width of their 95% confidence interval");
+        System.out.println(" num     #instances      +/-          #bytes        +/-  class name");
+        System.out.println("-------------------------------------------------------------------");
+        int num = 0;
+        for (int slot : order) {
+            System.out.printf("%4d: %14.0f %8s %15.0f %10s  %s\n", ++num, count[slot][0], interval(count[slot][1]),
+                    bytes[slot][0], interval(bytes[slot][1]), names.get(slot));
+        }
+        System.out.printf("Total %14.0f %8s %15.0f %10s\n", count[0][0], interval(count[0][1]), bytes[0][0], interval(bytes[0][1]));
+    }
+
+    private static String interval(double halfWidth) {
+        return Double.isNaN(halfWidth) ? "?" : String.format("%.0f", halfWidth);
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader over the bytes of a dump with a ByteBuffer like API and long
+ * positions.
+ *
+ * Data is exposed one window (a ByteBuffer) at a time: a mapped chunk of
+ * the file or a decompressed block.  Reads inside the window go straight
+ * to the ByteBuffer; only reads crossing a window boundary take the slow
+ * path.  Absolute reads are always possible on random access inputs; on
+ * streamed inputs they must not precede the current position.
+ */
+abstract class HprofBuffer {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    protected ByteBuffer window = EMPTY;
+    protected long windowStart;
+
+    /**
+     * Opens a dump, choosing the reader by the first bytes of the file:
+     * gzip input is decompressed on the fly, anything else is mapped.
+     *
+     * @param threads decompression threads for multi-member gzip input
+     */
+    static HprofBuffer open(File file, int threads) throws IOException {
+        if (isGzip(file)) {
+            return new GzipHprofBuffer(file, threads);
+        }
+        return new MappedHprofBuffer(file);
+    }
+
+    static boolean isGzip(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the window cover pos.  Returns false, leaving an empty window
+     * at pos, if pos is at or past the end of the data.
+     */
+    protected abstract boolean loadWindow(long pos);
+
+    /** Reads a byte outside the current window. */
+    protected abstract byte byteAt(long pos);
+
+    /** Returns the data length, or Long.MAX_VALUE while it is not known yet. */
+    abstract long limit();
+
+    /** Truncates the data at newLimit. */
+    abstract void limit(long newLimit);
+
+    /** Returns true if absolute reads may go anywhere in the data. */
+    abstract boolean randomAccess();
+
+    /** Goes back to the start of the data. */
+    abstract void rewind() throws IOException;
+
+    /** Picks up data appended to the file; returns true if there was any. */
+    boolean remap() throws IOException {
+        return false;
+    }
+
+    void close() {
+    }
+
+    protected void emptyWindow(long pos) {
+        window = EMPTY;
+        windowStart = pos;
+    }
+
+    final long position() {
+        return windowStart + window.position();
+    }
+
+    final void position(long pos) {
+        long off = pos - windowStart;
+        if (off >= 0 && off <= window.limit()) {
+            window.position((int) off);
+        } else {
+            loadWindow(pos);
+        }
+    }
+
+    final boolean hasRemaining() {
+        return window.hasRemaining() || loadWindow(position());
+    }
+
+    private void nextWindow() {
+        if (!loadWindow(position())) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    final byte get() {
+        if (!window.hasRemaining()) {
+            nextWindow();
+        }
+        return window.get();
+    }
+
+    final void get(byte[] dst) {
+        int off = 0;
+        while (off < dst.length) {
+            if (!window.hasRemaining()) {
+                nextWindow();
+            }
+            int n = Math.min(dst.length - off, window.remaining());
+            window.get(dst, off, n);
+            off += n;
+        }
+    }
+
+    final short getShort() {
+        if (window.remaining() >= 2) {
+            return window.getShort();
+        }
+        return (short) (((get() & 0xff) << 8) | (get() & 0xff));
+    }
+
+    final char getChar() {
+        return (char) getShort();
+    }
+
+    final int getInt() {
+        if (window.remaining() >= 4) {
+            return window.getInt();
+        }
+        return ((get() & 0xff) << 24) | ((get() & 0xff) << 16) | ((get() & 0xff) << 8) | (get() & 0xff);
+    }
+
+    final long getLong() {
+        if (window.remaining() >= 8) {
+            return window.getLong();
+        }
+        return ((long) getInt() << 32) | (getInt() & 0xffffffffL);
+    }
+
+    /** Reads dst.length big-endian chars, in bulk within a window. */
+    final void getChars(char[] dst) {
+        int off = 0;
+        while (off < dst.length) {
+            if (window.remaining() < 2) {
+                if (window.hasRemaining()) {
+                    // a char split between two windows
+                    dst[off++] = getChar();
+                    continue;
+                }
+                nextWindow();
+            }
+            int n = Math.min(dst.length - off, window.remaining() / 2);
+            window.asCharBuffer().get(dst, off, n);
+            window.position(window.position() + 2 * n);
+            off += n;
+        }
+    }
+
+    final float getFloat() {
+        return Float.intBitsToFloat(getInt());
+    }
+
+    final double getDouble() {
+        return Double.longBitsToDouble(getLong());
+    }
+
+    final byte get(long pos) {
+        long off = pos - windowStart;
+        if (off >= 0 && off < window.limit()) {
+            return window.get((int) off);
+        }
+        return byteAt(pos);
+    }
+
+    final short getShort(long pos) {
+        long off = pos - windowStart;
+        if (off >= 0 && off + 2 <= window.limit()) {
+            return window.getShort((int) off);
+        }
+        return (short) (((get(pos) & 0xff) << 8) | (get(pos + 1) & 0xff));
+    }
+
+    final char getChar(long pos) {
+        return (char) getShort(pos);
+    }
+
+    /** Reads dst.length big-endian chars at pos without moving the position. */
+    final void getChars(long pos, char[] dst) {
+        long off = pos - windowStart;
+        if (off >= 0 && off + 2L * dst.length <= window.limit()) {
+            ByteBuffer b = window.duplicate();
+            b.position((int) off);
+            b.asCharBuffer().get(dst);
+            return;
+        }
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = getChar(pos + 2L * i);
+        }
+    }
+
+    final int getInt(long pos) {
+        long off = pos - windowStart;
+        if (off >= 0 && off + 4 <= window.limit()) {
+            return window.getInt((int) off);
+        }
+        return ((get(pos) & 0xff) << 24) | ((get(pos + 1) & 0xff) << 16)
+                | ((get(pos + 2) & 0xff) << 8) | (get(pos + 3) & 0xff);
+    }
+
+    final long getLong(long pos) {
+        long off = pos - windowStart;
+        if (off >= 0 && off + 8 <= window.limit()) {
+            return window.getLong((int) off);
+        }
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+}
@@ -7,20 +7,23 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.TreeMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 /**
@@ -34,26 +37,109 @@ public class HprofConverter {
     private boolean convert = false;
     private boolean dumpCharArray = false;
     private boolean dumpString = false;
-    private Map<Id,char[]> charArrayMap = new TreeMap<>();
-    private Map<Id,Id> pendingStrings = new TreeMap<>();
+    private MemoryBudget budget = new MemoryBudget();
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+    private byte[] hexLine = new byte[4096];
+    private long memoryBudget;
+    private File scratchDir;
+    /** char[] id to the dump position of its chars, for -dump_string on random access input */
+    private LongLongMap charArrayMap;
+    /** char[] id to its chars, for -dump_string on streamed input */
+    private StringTable charArrayText;
+    /** String id to the id of a char[] not seen yet */
+    private LongLongMap pendingStrings;
     private List<String> hprof_files = new ArrayList<>();
     private PrintWriter hprof_out = null;
     private Logger logger = Logger.getLogger(getClass().getName());
-    private Map<Id,String> nameMap = new HashMap<>();
-    private Map<Id,Id> cnDic = new HashMap<>();
+    private StringTable nameMap;
+    private LongLongMap cnDic;
     private Map<Id,ClassInfo> clsDic = new HashMap<>();
-    private MappedByteBuffer buf;
+    private HprofBuffer buf;
     private int pointerSize;
     private long tms;
     private String currentPath;
     private String outfile_name;
-    private int remaining;
+    private long remaining;
     private int currentPass;
     private boolean includeHeaderSize = true;
+    private String layoutModel = "auto";
+    private boolean legacyLayout = false;
+    private int objectAlignment;
+    private ObjectLayout layout;
+    private long minObjectId = -1;
+    private long maxObjectId;
+    private long objectIdBits;
+    private long objectIdSamples;
     private long n_HPROF_GC_CLASS_DUMP;
     private long n_HPROF_GC_INSTANCE_DUMP;
     private long n_HPROF_GC_OBJ_ARRAY_DUMP;
     private long n_HPROF_GC_PRIM_ARRAY_DUMP;
+    /** char[] and byte[] arrays, which the duplicate tables see */
+    private long textArrays;
+    private List<Long> pathTargets = new ArrayList<>();
+    private boolean excludeWeak = false;
+    private HeapGraph heapGraph;
+    private ObjectIndex objectIndex;
+    private boolean histogram = false;
+    private boolean diff = false;
+    private boolean diffObjects = false;
+    private long[] primArrayCount = new long[12];
+    private long[] primArrayBytes = new long[12];
+    private ExternalIdSorter idSorter;
+    private Map<String,Integer> diffClassKeys = new HashMap<>();
+    private List<String> diffClassNames = new ArrayList<>();
+    private boolean duplicates = false;
+    private int dupTableSize = 1 << 18;
+    private DuplicateTable duplicateStrings;
+    private DuplicateTable duplicateArrays;
+    private LongIntHashMap stringValueIds;
+    private long stringClassId;
+    private int stringValueOffset = -1;
+    private static final int DUP_REPORT_LIMIT = 50;
+    private boolean collections = false;
+    private CollectionStats collectionStats;
+    private StackTraces traces = new StackTraces();
+    private boolean threadStacks = false;
+    private boolean threadRetained = false;
+    private boolean classLoaderReport = false;
+    private ClassLoaders classLoaders;
+    private StaticValues statics = new StaticValues();
+    private boolean dumpStatics = false;
+    private List<FieldProjection> projections = new ArrayList<>();
+    private LongIntHashMap projectionSlots;
+    private List<FieldProjection.Binding> bindings;
+    private PrintWriter rowOut;
+    private final StringBuilder rowText = new StringBuilder();
+    private boolean walkInstanceFields = true;
+    private Query query;
+    private double sampleFraction;
+    private HeapSampler sampler;
+    private LongIntHashMap querySlots;
+    private List<Query.Bound> queryBindings;
+    private Query.Context queryContext;
+    private long queryTested;
+    private long queryMatches;
+    private boolean heapDumpBegun;
+    private int[] cpuSamples;   // count, trace serial pairs
+    private int cpuSamplesTotal;
+    private boolean follow = false;
+    private boolean recover = false;
+    private File layoutCacheFile;
+    private boolean timing = false;
+    private static long mainNanos;
+    private long firstRecordNanos;
+    private long firstRecordMillis;
+    private ClassLayoutCache layoutCache;
+    private Recovery recovery = new Recovery();
+    private int followIdleSeconds = 10;
+    private boolean dumpEnded;
+    private int gzThreads = Runtime.getRuntime().availableProcessors();
+    private static final int FOLLOW_POLL_MS = 200;
+    private static final int HEADER_SIZE = 31;
+    private static final int RECORD_HEADER_SIZE = 9;
+    /** bytes searched for a plausible record before the position is moved on */
+    private static final int RESYNC_CHUNK = 1 << 20;
     
     private static final String helpMessage = "usage: java -jar HprocConverter [-convert] [-v|-q] <binary hprof file...>\n"
             + "  HprocConverter converts hprof binary file to hprof ASCII file.\n"
@@ -63,6 +149,69 @@ public class HprofConverter {
             + "              Without this option, the tool simply parses input file(s).\n"
             + "    -dump_string: Dump Strings to stdout.\n"
             + "    -dump_char_array: Dump char array to stdout.\n"
+            + "    -fields <class>:<field>[,<field>...]: Write the given instance fields\n"
+            + "              of every instance of the class to stdout as tab separated\n"
+            + "              values.  May be repeated.  Use -q to keep stdout clean.\n"
+            + "    -sample <fraction>: Print a histogram estimated from windows covering\n"
+            + "              about this fraction of the object records, e.g. 0.01, with\n"
+            + "              95% confidence intervals.  Nothing else is printed.  Needs\n"
+            + "              an uncompressed dump, as the windows are reached by seeking.\n"
+            + "              -layout auto sees only the class ids before the windows\n"
+            + "              and may guess wrong; name the layout with -layout.\n"
+            + "    -query <query>: Write the instances selected by an OQL like query to\n"
+            + "              stdout as tab separated values, e.g.\n"
+            + "              \"select s from java.lang.String s where s.value.length > 10000\"\n"
+            + "              Conditions compare fields, length of arrays, numbers, true,\n"
+            + "              false and null with == != < <= > >=, joined by and, or, not.\n"
+            + "    -dump_statics: Print the static field and constant pool values of\n"
+            + "              every class.\n"
+            + "    -path_to_root <id>: Print the shortest reference chain from a GC root\n"
+            + "              to the object with the given hex id.  May be repeated.\n"
+            + "    -exclude_weak: Ignore referents of weak, soft and phantom references\n"
+            + "              when searching paths to GC roots.\n"
+            + "    -histogram: Print instance count and shallow size per class.\n"
+            + "    -diff <a> <b>: Print per class count and size deltas from dump a to dump b.\n"
+            + "    -diff_objects: With -diff, also count objects new in b or gone from a,\n"
+            + "              matched by object id (dumps must come from the same process).\n"
+            + "    -duplicates: Report duplicate Strings and char[]/byte[] contents\n"
+            + "              ranked by wasted bytes.\n"
+            + "    -dup_table_size <n>: Max. number of distinct duplicated contents tracked\n"
+            + "              by -duplicates (default 262144).\n"
+            + "    -thread_stacks: Print the stack of each thread with the GC roots held\n"
+            + "              by its frames.\n"
+            + "    -thread_retained: Report the heap kept reachable by the stack of each\n"
+            + "              thread, beyond what the global roots keep reachable.\n"
+            + "    -class_loaders: Report the classes of each class loader, the class names\n"
+            + "              defined by more than one loader, and what keeps the loaders alive:\n"
+            + "              a path from a root other than a loader, else one through a\n"
+            + "              loader that is itself a root, e.g. a parent held by JNI.\n"
+            + "    -collections: Report fill ratio and wasted slots of HashMap, ArrayList,\n"
+            + "              ConcurrentHashMap and similar collections per class and owner field.\n"
+            + "    -follow: Parse a dump while it is still being written.  Records are\n"
+            + "              read as they are appended; the dump is complete at the\n"
+            + "              HEAP DUMP END record or when the file stops growing.\n"
+            + "    -follow_idle <seconds>: With -follow, time without growth after which\n"
+            + "              the file is considered complete (default 10).\n"
+            + "    -gz_threads <n>: Threads decompressing gzip input (.hprof.gz) written\n"
+            + "              in blocks by HotSpot (default: number of processors).\n"
+            + "    -memory_budget <size>: Heap for the name, class, string and duplicate\n"
+            + "              tables, e.g. 512m or 2g.  A table exceeding its share moves to\n"
+            + "              a memory mapped scratch file, or for -duplicates uses a smaller\n"
+            + "              filter; usage is reported at the end.\n"
+            + "    -scratch_dir <dir>: Directory of the scratch files (default: java.io.tmpdir).\n"
+            + "    -layout_cache <file>: Keep the field layouts of classes in this file and\n"
+            + "              reuse them for dumps of the same application build.\n"
+            + "    -recover: Continue after corrupt or truncated records instead of\n"
+            + "              stopping.  Parsing resumes at the next plausible record and\n"
+            + "              the reports cover what could be read; the errors are listed.\n"
+            + "    -layout <model>: Object layout of the shallow sizes: auto (default,\n"
+            + "              guessed from the dump), 32, coops (compressed oops and class\n"
+            + "              pointers), noncoops (compressed class pointers only),\n"
+            + "              uncompressed, or legacy for the sizes of earlier versions.\n"
+            + "    -object_alignment <n>: Object alignment of the JVM (default: guessed, 8).\n"
+            + "    -timing: Print to stderr how long after start the first record was\n"
+            + "              read, how long the whole run took, and the heap objects\n"
+            + "              read per second of the last dump.\n"
             + "    -v: set logging level to FINER.  Cannot be used with -q\n"
             + "    -q: set logging level to WARNING.  Cannot be used with -v"; 
            
@@ -104,6 +253,119 @@ public class HprofConverter {
                 dumpCharArray = true;
             } else if (args[i].equals("-dump_string")) {
                 dumpString = true;
+            } else if (args[i].equals("-path_to_root")) {
+                if (i + 1 >= args.length) {
+                    logger.severe("-path_to_root requires an object id.");
+                    System.exit(1);
+                }
+                String idarg = args[++i];
+                try {
+                    pathTargets.add(parseIdArg(idarg));
+                } catch (NumberFormatException nfe) {
+                    logger.severe("invalid object id " + idarg);
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-exclude_weak")) {
+                excludeWeak = true;
+            } else if (args[i].equals("-histogram")) {
+                histogram = true;
+            } else if (args[i].equals("-diff")) {
+                diff = true;
+            } else if (args[i].equals("-diff_objects")) {
+                diffObjects = true;
+            } else if (args[i].equals("-duplicates")) {
+                duplicates = true;
+            } else if (args[i].equals("-thread_stacks")) {
+                threadStacks = true;
+            } else if (args[i].equals("-fields")) {
+                if (i + 1 >= args.length) {
+                    logger.severe("-fields requires class:field[,field...]");
+                    System.exit(1);
+                }
+                try {
+                    projections.add(FieldProjection.parse(args[++i]));
+                } catch (IllegalArgumentException iae) {
+                    logger.severe(iae.getMessage());
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-sample")) {
+                try {
+                    sampleFraction = Double.parseDouble(args[++i]);
+                } catch (RuntimeException re) {
+                    sampleFraction = -1;
+                }
+                if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+                    logger.severe("-sample requires a fraction greater than 0 and at most 1");
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-query")) {
+                if (i + 1 >= args.length) {
+                    logger.severe("-query requires a query");
+                    System.exit(1);
+                }
+                try {
+                    query = Query.parse(args[++i]);
+                } catch (IllegalArgumentException iae) {
+                    logger.severe(iae.getMessage());
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-dump_statics")) {
+                dumpStatics = true;
+            } else if (args[i].equals("-class_loaders")) {
+                classLoaderReport = true;
+            } else if (args[i].equals("-thread_retained")) {
+                threadRetained = true;
+            } else if (args[i].equals("-collections")) {
+                collections = true;
+            } else if (args[i].equals("-follow")) {
+                follow = true;
+            } else if (args[i].equals("-recover")) {
+                recover = true;
+            } else if (args[i].equals("-layout")) {
+                if (i + 1 >= args.length || !(args[i + 1].equals("auto") || args[i + 1].equals("legacy")
+                        || ObjectLayout.isModel(args[i + 1]))) {
+                    logger.severe("-layout requires auto, legacy, 32, coops, noncoops or uncompressed");
+                    System.exit(1);
+                }
+                layoutModel = args[++i];
+                legacyLayout = layoutModel.equals("legacy");
+            } else if (args[i].equals("-object_alignment")) {
+                objectAlignment = parseIntArg(args, ++i, "-object_alignment");
+                if (Integer.bitCount(objectAlignment) != 1 || objectAlignment < 8 || objectAlignment > 256) {
+                    logger.severe("-object_alignment must be a power of 2 from 8 to 256");
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-timing")) {
+                timing = true;
+            } else if (args[i].equals("-layout_cache")) {
+                if (i + 1 >= args.length) {
+                    logger.severe("-layout_cache requires a file");
+                    System.exit(1);
+                }
+                layoutCacheFile = new File(args[++i]);
+            } else if (args[i].equals("-gz_threads")) {
+                gzThreads = parseIntArg(args, ++i, "-gz_threads");
+            } else if (args[i].equals("-follow_idle")) {
+                followIdleSeconds = parseIntArg(args, ++i, "-follow_idle");
+            } else if (args[i].equals("-memory_budget") || args[i].equals("-memory-budget")) {
+                if (i + 1 >= args.length) {
+                    logger.severe(args[i] + " requires a size");
+                    System.exit(1);
+                }
+                try {
+                    memoryBudget = MemoryBudget.parseSize(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    logger.severe("bad size for -memory_budget: " + args[i]);
+                    System.exit(1);
+                }
+            } else if (args[i].equals("-scratch_dir")) {
+                if (i + 1 >= args.length) {
+                    logger.severe("-scratch_dir requires a directory");
+                    System.exit(1);
+                }
+                scratchDir = new File(args[++i]);
+            } else if (args[i].equals("-dup_table_size")) {
+                dupTableSize = parseIntArg(args, ++i, "-dup_table_size");
             } else if (args[i].equals("-h") || args[i].equals("-help")) {
                 showHelp();
                 System.exit(0);
@@ -111,10 +373,48 @@ public class HprofConverter {
                 hprof_files.add(args[i]);
             }
         }
+        if (memoryBudget > 0) {
+            budget = new MemoryBudget(memoryBudget, scratchDir);
+        }
+        if (layoutCacheFile != null) {
+            layoutCache = ClassLayoutCache.open(layoutCacheFile);
+        }
+        if (sampleFraction > 0 && convert) {
+            logger.severe("-sample cannot be used with -convert.");
+            System.exit(1);
+        }
         if (vflag & qflag) {
             logger.severe("-v and -q cannot be used at the same time.");
             System.exit(1);
         }
+        if (diffObjects && !diff) {
+            logger.severe("-diff_objects can only be used with -diff.");
+            System.exit(1);
+        }
+    }
+
+    private int parseIntArg(String[] args, int i, String option) {
+        if (i >= args.length) {
+            logger.severe(option + " requires a number.");
+            System.exit(1);
+        }
+        try {
+            int v = Integer.parseInt(args[i]);
+            if (v > 0) {
+                return v;
+            }
+        } catch (NumberFormatException nfe) {
+        }
+        logger.severe("invalid value " + args[i] + " for " + option);
+        System.exit(1);
+        return 0;
+    }
+
+    private static long parseIdArg(String s) {
+        if (s.startsWith("0x") || s.startsWith("0X")) {
+            s = s.substring(2);
+        }
+        return Long.parseUnsignedLong(s, 16);
     }
 
     private void readHeader(boolean print) throws UnsupportedEncodingException {
@@ -179,11 +479,67 @@ public class HprofConverter {
         
         hprof_out = new PrintWriter(new FileWriter(outfile_name));
         hprof_out.println(ascii_hprof_header);
-        hprof_out.println("HEAP DUMP BEGIN (0 objects, 0 bytes) Sun Mar  9 20:47:55 2008");
         hprof_out.flush();
 
     }
 
+    /**
+     * Starts the HEAP DUMP section of the ASCII output.  It is deferred until
+     * the first heap dump record so that THREAD START and TRACE records,
+     * which precede it in the binary file, are written before it.
+     */
+    private void beginHeapDumpOutput() {
+        if (convert && currentPass == 1 && !heapDumpBegun) {
+            hprof_out.println("HEAP DUMP BEGIN (0 objects, 0 bytes) Sun Mar  9 20:47:55 2008");
+            heapDumpBegun = true;
+        }
+    }
+
+    /** Reads an id at an absolute buffer position without moving the position. */
+    private long readIdAt(long pos) {
+        if (pointerSize == 4) {
+            return 0xffffffffL & buf.getInt(pos);
+        }
+        return buf.getLong(pos);
+    }
+
+    /** Reads an id as a long, without allocating an Id. */
+    private long readIdValue() {
+        if (pointerSize == 4) {
+            return 0xffffffffL & buf.getInt();
+        }
+        return buf.getLong();
+    }
+
+    /**
+     * Reads a value of the given basic type as raw bits, see StaticValues.
+     * Returns 0 and reads nothing for an unknown type.
+     */
+    private long readValue(byte type) {
+        switch (type) {
+            case 2: // object
+                return readIdValue();
+            case 4: // boolean
+            case 8: // byte
+                return buf.get();
+            case 5: // char
+                return buf.getChar();
+            case 9: // short
+                return buf.getShort();
+            case 6: // float
+            case 10: // int
+                return buf.getInt();
+            case 7: // double
+            case 11: // long
+                return buf.getLong();
+        }
+        return 0;
+    }
+
+    private static boolean isBasicType(byte type) {
+        return type == 2 || primitiveTypeSize(type) != 0;
+    }
+
     private Id readId() {
         if (pointerSize == 4) {
             int v = buf.getInt();
@@ -203,24 +559,24 @@ public class HprofConverter {
 
         Id nameid = readId();
 
-        String str = "";
-        int balen = remaining - pointerSize;
+        byte[] utf8a = new byte[0];
+        int balen = (int) (remaining - pointerSize);
         if (balen > 0) {
-            int current_offset = buf.position();
+            long current_offset = buf.position();
             try {
-                byte[] utf8a = new byte[remaining - pointerSize];
+                utf8a = new byte[balen];
                 buf.get(utf8a);
-                str = new String(utf8a, "UTF8");
             } catch (OutOfMemoryError oome) {
-                logger.log(Level.SEVERE, "OutOfMemoryError balen " + balen + ", current position " + Integer.toOctalString(current_offset));
-                str = "__out_of_memory_error__";
+                logger.log(Level.SEVERE, "OutOfMemoryError balen " + balen + ", current position " + Long.toOctalString(current_offset));
+                utf8a = "__out_of_memory_error__".getBytes("UTF8");
             }
         }
 
         if (dump_name) {
-            System.out.printf("name %x %s\n", nameid.getValue(), str);
+            System.out.printf("name %x %s\n", nameid.getValue(), new String(utf8a, "UTF8"));
         }
-        nameMap.put(nameid, str);
+        // kept as bytes and decoded on use; class names are cached in ClassInfo
+        nameMap.put(nameid.getValue(), utf8a);
 
     // test
     //long idval = nameid.getValue();
@@ -233,12 +589,207 @@ public class HprofConverter {
         Id objid = readId();
         int stktsn = buf.getInt();
         Id nameid = readId();
-        logger.log(Level.FINE, String.format("class sn %x id %x stktn %x nid %x %s\n", serial, objid.getValue(), stktsn, nameid.getValue(), nameMap.get(nameid)));
-        cnDic.put(objid, nameid);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, String.format("class sn %x id %x stktn %x nid %x %s\n", serial, objid.getValue(), stktsn, nameid.getValue(), nameMap.get(nameid.getValue())));
+        }
+        cnDic.put(objid.getValue(), nameid.getValue());
+        traces.addClass(serial, objid.getValue());
+    }
+
+    private void process_FRAME() {
+        Id frameid = readId();
+        Id methodid = readId();
+        readId(); // signature
+        Id srcid = readId();
+        int clssn = buf.getInt();
+        int line = buf.getInt();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "HPROF_FRAME " + frameid + " method " + nameMap.get(methodid.getValue()) + " class sn " + clssn + " line " + line);
+        }
+        traces.addFrame(frameid.getValue(), methodid.getValue(), srcid.getValue(), clssn, line);
+    }
+
+    private void process_TRACE() {
+        int serial = buf.getInt();
+        int tsn = buf.getInt();
+        int n_frames = buf.getInt();
+        logger.log(Level.FINE, "HPROF_TRACE " + serial + " thread " + tsn + " frames " + n_frames);
+        if (!StackTraces.validSerial(serial)) {
+            logger.log(Level.WARNING, "ignoring HPROF_TRACE with serial " + serial);
+            buf.position(buf.position() + (long) n_frames * pointerSize);
+            return;
+        }
+        traces.beginTrace(serial);
+        for (int i = 0; i < n_frames; i++) {
+            traces.addTraceFrame(serial, readId().getValue());
+        }
+        if (convert) {
+            printTrace(hprof_out, serial, "\t");
+        }
+    }
+
+    private void process_START_THREAD() {
+        int tsn = buf.getInt();
+        Id objid = readId();
+        int trace = buf.getInt();
+        Id nameid = readId();
+        Id groupid = readId();
+        readId(); // parent thread group
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "HPROF_START_THREAD " + tsn + " obj " + objid + " name " + nameMap.get(nameid.getValue()));
+        }
+        if (!StackTraces.validSerial(tsn)) {
+            logger.log(Level.WARNING, "ignoring HPROF_START_THREAD with serial " + tsn);
+            return;
+        }
+        traces.addThread(tsn, objid.getValue(), trace, nameid.getValue());
+        if (convert) {
+            hprof_out.println("THREAD START (obj=" + objid + ", id = " + tsn + ", name=\"" + nameOrEmpty(nameid)
+                    + "\", group=\"" + nameOrEmpty(groupid) + "\")");
+        }
+    }
+
+    private void process_END_THREAD() {
+        int tsn = buf.getInt();
+        logger.log(Level.FINE, "HPROF_END_THREAD " + tsn);
+        if (convert) {
+            hprof_out.println("THREAD END (id = " + tsn + ")");
+        }
+    }
+
+    private void process_CPU_SAMPLES() {
+        cpuSamplesTotal = buf.getInt();
+        int n_traces = buf.getInt();
+        cpuSamples = new int[n_traces * 2];
+        for (int i = 0; i < n_traces; i++) {
+            cpuSamples[i * 2] = buf.getInt();
+            cpuSamples[i * 2 + 1] = buf.getInt();
+        }
+        logger.log(Level.FINE, "HPROF_CPU_SAMPLES total " + cpuSamplesTotal + " traces " + n_traces);
+    }
+
+    private String nameOrEmpty(Id nameid) {
+        String name = nameMap.get(nameid.getValue());
+        return name != null ? name : "";
+    }
+
+    /** Formats a frame as class.method(source:line) like the ASCII hprof agent. */
+    private String formatFrame(int ord) {
+        if (ord < 0) {
+            return "<unknown frame>";
+        }
+        String cname = getNameForClassId(new Id(traces.frameClassId(ord)));
+        String method = nameOrEmpty(new Id(traces.frameMethod(ord)));
+        String source = nameMap.get(traces.frameSource(ord));
+        int line = traces.frameLine(ord);
+        String location;
+        if (line == -2) {
+            location = "Compiled method";
+        } else if (line == -3) {
+            location = "Native method";
+        } else if (source == null || source.length() == 0) {
+            location = "Unknown Source";
+        } else if (line > 0) {
+            location = source + ":" + line;
+        } else {
+            location = source + ":Unknown line";
+        }
+        return (cname == null ? "null" : cname.replace('/', '.')) + "." + method + "(" + location + ")";
+    }
+
+    private void printTrace(PrintWriter out, int serial, String indent) {
+        out.println("TRACE " + serial + ":");
+        int depth = traces.traceDepth(serial);
+        if (depth == 0) {
+            out.println(indent + "<empty>");
+        }
+        for (int i = 0; i < depth; i++) {
+            out.println(indent + formatFrame(traces.traceFrame(serial, i)));
+        }
+    }
+
+    private void printCpuSamples(PrintWriter out) {
+        out.println("CPU SAMPLES BEGIN (total = " + cpuSamplesTotal + ") Sun Mar  9 20:47:55 2008");
+        out.println("rank   self  accum   count trace method");
+        double accum = 0;
+        int n = cpuSamples.length / 2;
+        for (int i = 0; i < n; i++) {
+            int count = cpuSamples[i * 2];
+            int serial = cpuSamples[i * 2 + 1];
+            double self = cpuSamplesTotal == 0 ? 0 : 100.0 * count / cpuSamplesTotal;
+            accum += self;
+            String method = traces.hasTrace(serial) && traces.traceDepth(serial) > 0
+                    ? formatFrame(traces.traceFrame(serial, 0)) : "<unknown>";
+            int paren = method.indexOf('(');
+            out.println(String.format("%4d %5.2f%% %5.2f%% %7d %5d %s", i + 1, self, accum, count, serial,
+                    paren > 0 ? method.substring(0, paren) : method));
+        }
+        out.println("CPU SAMPLES END");
+    }
+
+    private void printThreadStacks() {
+        System.out.println("Thread stacks with the GC roots held by their frames");
+        int n = traces.stackRootCount();
+        int k = 0;
+        for (int tsn : traces.threadSerials()) {
+            // roots of threads that are not valid serials come first or last and are skipped
+            while (k < n && traces.stackRootThread(traces.stackRootAt(k)) < tsn) {
+                k++;
+            }
+            int end = k;
+            while (end < n && traces.stackRootThread(traces.stackRootAt(end)) == tsn) {
+                end++;
+            }
+            String header = "Thread " + tsn;
+            int trace = -1;
+            if (traces.hasThread(tsn)) {
+                header += " \"" + nameOrEmpty(new Id(traces.threadName(tsn))) + "\" (obj="
+                        + Long.toHexString(traces.threadObj(tsn)) + ", trace=" + traces.threadTrace(tsn) + ")";
+                trace = traces.threadTrace(tsn);
+            }
+            System.out.println(header);
+            int depth = traces.hasTrace(trace) ? traces.traceDepth(trace) : 0;
+            // roots sort by depth, so those of negative depth come first
+            int r = k;
+            while (r < end && traces.stackRootDepth(traces.stackRootAt(r)) < 0) {
+                r++;
+            }
+            int inFrames = r;
+            for (int d = 0; d < depth; d++) {
+                System.out.println("\tat " + formatFrame(traces.traceFrame(trace, d)));
+                for (; r < end && traces.stackRootDepth(traces.stackRootAt(r)) == d; r++) {
+                    printStackRoot(traces.stackRootAt(r), "\t\t");
+                }
+            }
+            for (int j = k; j < inFrames; j++) {
+                printRootNotInTrace(traces.stackRootAt(j));
+            }
+            for (int j = r; j < end; j++) {
+                printRootNotInTrace(traces.stackRootAt(j));
+            }
+            k = end;
+        }
+    }
+
+    private void printRootNotInTrace(int i) {
+        System.out.println("\t(frame " + traces.stackRootDepth(i) + " not in trace)");
+        printStackRoot(i, "\t\t");
+    }
+
+    private void printStackRoot(int i, String indent) {
+        long cls = traces.stackRootClass(i);
+        String cname = cls < 0 ? primitiveTypeName((int) -cls) + "[]" : cls == 0 ? "null" : getNameForClassId(new Id(cls));
+        System.out.println(indent + Long.toHexString(traces.stackRootObj(i)) + " " + cname
+                + " " + rootKindName(traces.stackRootKind(i)));
     }
 
     private void process_HEAP_DUMP() {
-        int endpos = buf.position() + remaining;
+        beginHeapDumpOutput();
+        long endpos = buf.position() + remaining;
+        if (sampler != null) {
+            sampleHeapDump(endpos);
+            return;
+        }
         long n_processed = 0;
         boolean printProgress = false;
         if (currentPass == 2 && logger.isLoggable(Level.INFO)) {
@@ -248,53 +799,31 @@ public class HprofConverter {
             }
         }
         while (buf.position() < endpos) {
+            long srpos = buf.position();
             byte srt = buf.get();
-            switch (srt) {
-                case HPROF_GC_ROOT_UNKNOWN:
-                    process_HPROF_GC_ROOT_UNKNOWN();
-                    break;
-                case HPROF_GC_ROOT_THREAD_OBJ:
-                    process_HPROF_GC_ROOT_THREAD_OBJ();
-                    break;
-                case HPROF_GC_ROOT_JNI_GLOBAL:
-                    process_HPROF_GC_ROOT_JNI_GLOBAL();
-                    break;
-                case HPROF_GC_ROOT_JNI_LOCAL:
-                    process_HPROF_GC_ROOT_JNI_LOCAL();
-                    break;
-                case HPROF_GC_ROOT_JAVA_FRAME:
-                    process_HPROF_GC_ROOT_JAVA_FRAME();
-                    break;
-                case HPROF_GC_ROOT_NATIVE_STACK:
-                    process_HPROF_GC_ROOT_NATIVE_STACK();
-                    break;
-                case HPROF_GC_ROOT_STICKY_CLASS:
-                    process_HPROF_GC_ROOT_STICKY_CLASS();
-                    break;
-                case HPROF_GC_ROOT_THREAD_BLOCK:
-                    process_HPROF_GC_ROOT_THREAD_BLOCK();
-                    break;
-                case HPROF_GC_ROOT_MONITOR_USED:
-                    process_HPROF_GC_ROOT_MONITOR_USED();
-                    break;
-                case HPROF_GC_CLASS_DUMP:
-                    process_HPROF_GC_CLASS_DUMP();
-                    break;
-                case HPROF_GC_INSTANCE_DUMP:
-                    process_HPROF_GC_INSTANCE_DUMP();
-                    n_processed++;
-                    break;
-                case HPROF_GC_OBJ_ARRAY_DUMP:
-                    process_HPROF_GC_OBJ_ARRAY_DUMP();
-                    n_processed++;
-                    break;
-                case HPROF_GC_PRIM_ARRAY_DUMP:
-                    process_HPROF_GC_PRIM_ARRAY_DUMP();
-                    n_processed++;
-                    break;
-                default:
+            String error = null;
+            try {
+                if (!process_heap_dump_sub_record(srt)) {
+                    error = "unknown heap dump sub record type " + srt;
+                }
+            } catch (RuntimeException re) {
+                if (!recover) {
+                    throw re;
+                }
+                error = "bad heap dump sub record type " + srt + ": " + re;
+            }
+            if (error != null) {
+                if (!recover) {
                     logger.log(Level.SEVERE, "Unknown heapdump sub record type " + srt);
                     System.exit(1);
+                }
+                buf.position(resyncSubRecord(srpos, endpos, error));
+                // compressed input learns its length only at its end
+                endpos = Math.min(endpos, buf.limit());
+                continue;
+            }
+            if (isObjectRecord(srt)) {
+                n_processed++;
             }
             if (printProgress) {
                 if (((n_processed+1)%10000) == 0) {
@@ -308,18 +837,289 @@ public class HprofConverter {
         }
     }
 
+    /** Processes the sub record after tag srt; returns false for an unknown tag. */
+    private boolean process_heap_dump_sub_record(byte srt) {
+        switch (srt) {
+            case HPROF_GC_ROOT_UNKNOWN:
+                process_HPROF_GC_ROOT_UNKNOWN();
+                break;
+            case HPROF_GC_ROOT_THREAD_OBJ:
+                process_HPROF_GC_ROOT_THREAD_OBJ();
+                break;
+            case HPROF_GC_ROOT_JNI_GLOBAL:
+                process_HPROF_GC_ROOT_JNI_GLOBAL();
+                break;
+            case HPROF_GC_ROOT_JNI_LOCAL:
+                process_HPROF_GC_ROOT_JNI_LOCAL();
+                break;
+            case HPROF_GC_ROOT_JAVA_FRAME:
+                process_HPROF_GC_ROOT_JAVA_FRAME();
+                break;
+            case HPROF_GC_ROOT_NATIVE_STACK:
+                process_HPROF_GC_ROOT_NATIVE_STACK();
+                break;
+            case HPROF_GC_ROOT_STICKY_CLASS:
+                process_HPROF_GC_ROOT_STICKY_CLASS();
+                break;
+            case HPROF_GC_ROOT_THREAD_BLOCK:
+                process_HPROF_GC_ROOT_THREAD_BLOCK();
+                break;
+            case HPROF_GC_ROOT_MONITOR_USED:
+                process_HPROF_GC_ROOT_MONITOR_USED();
+                break;
+            case HPROF_GC_CLASS_DUMP:
+                process_HPROF_GC_CLASS_DUMP();
+                break;
+            case HPROF_GC_INSTANCE_DUMP:
+                process_HPROF_GC_INSTANCE_DUMP();
+                break;
+            case HPROF_GC_OBJ_ARRAY_DUMP:
+                process_HPROF_GC_OBJ_ARRAY_DUMP();
+                break;
+            case HPROF_GC_PRIM_ARRAY_DUMP:
+                process_HPROF_GC_PRIM_ARRAY_DUMP();
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isObjectRecord(byte srt) {
+        return srt == HPROF_GC_INSTANCE_DUMP || srt == HPROF_GC_OBJ_ARRAY_DUMP || srt == HPROF_GC_PRIM_ARRAY_DUMP;
+    }
+
+    /**
+     * -sample: decodes the class dumps and roots leading the heap dump, then
+     * only the windows the sampler places over the object records after
+     * them.  A window starts at the first plausible object record at or
+     * after its offset; everything between windows is jumped over.
+     */
+    private void sampleHeapDump(long endpos) {
+        while (!sampler.started && buf.position() < endpos) {
+            byte srt = buf.get(buf.position());
+            if (isObjectRecord(srt)) {
+                sampler.started = true;
+                break;
+            }
+            long srpos = buf.position();
+            buf.get();
+            if (!process_heap_dump_sub_record(srt)) {
+                if (!recover) {
+                    logger.log(Level.SEVERE, "Unknown heapdump sub record type " + srt);
+                    System.exit(1);
+                }
+                buf.position(resyncSubRecord(srpos, endpos, "unknown heap dump sub record type " + srt));
+            }
+        }
+        long start = buf.position();
+        long r0 = sampler.addRegion(endpos - start);
+        // end of the last decoded record, or -1 when sync was lost there
+        long decodedTo = start;
+        for (long w; (w = start + sampler.nextWindow() - r0) < endpos; sampler.windowTaken()) {
+            long wend = Math.min(w + sampler.windowBytes, endpos);
+            long q = decodedTo >= w ? decodedTo : findObjectRecord(w, wend, endpos);
+            if (q < 0) {
+                // no object records here, which is part of the estimate too
+                sampler.lostWindow();
+                sampler.endWindow(wend - w);
+                continue;
+            }
+            if (q < endpos) {
+                decodedTo = sampleWindow(q, q + sampler.windowBytes, endpos);
+            }
+        }
+        buf.position(endpos);
+    }
+
+    /** Decodes the records from q until wend is passed; returns where the last one ends, or -1. */
+    private long sampleWindow(long q, long wend, long endpos) {
+        int ps = pointerSize;
+        long p = q;
+        boolean lost = false;
+        while (p < wend && p < endpos) {
+            byte srt = buf.get(p);
+            if (srt == HPROF_GC_INSTANCE_DUMP) {
+                long kid = readIdAt(p + 1 + ps + 4);
+                int k = sampleKey(kid);
+                if (k >= 0) {
+                    sampler.count(k);
+                }
+                p += 1 + 2L * ps + 8 + (buf.getInt(p + 1 + 2 * ps + 4) & 0xffffffffL);
+            } else if (srt == HPROF_GC_OBJ_ARRAY_DUMP) {
+                int n = buf.getInt(p + 1 + ps + 4);
+                int k = sampleKey(readIdAt(p + 1 + ps + 8));
+                if (k >= 0) {
+                    sampler.count(k, objArraySize(n));
+                }
+                p += 1 + 2L * ps + 8 + (n & 0xffffffffL) * ps;
+            } else if (srt == HPROF_GC_PRIM_ARRAY_DUMP) {
+                int n = buf.getInt(p + 1 + ps + 4);
+                byte etype = buf.get(p + 1 + ps + 8);
+                if (etype < 4 || etype > 11) {
+                    lost = true;
+                    break;
+                }
+                int k = sampler.key(-etype);
+                if (k < 0) {
+                    k = sampler.addKey(-etype, primitiveTypeName(etype) + "[]", -1);
+                }
+                sampler.count(k, primArraySize(etype, n));
+                p += 1 + ps + 9 + (n & 0xffffffffL) * primitiveTypeSize(etype);
+            } else {
+                buf.position(p + 1);
+                if (!process_heap_dump_sub_record(srt)) {
+                    lost = true;
+                    break;
+                }
+                p = buf.position();
+            }
+        }
+        sampler.endWindow(Math.min(p, endpos) - q);
+        return lost ? -1 : p;
+    }
+
+    /** Returns the sampler key of a class, or -1 for a class without CLASS_DUMP, which -histogram ignores too. */
+    private int sampleKey(long kid) {
+        int k = sampler.key(kid);
+        if (k < 0) {
+            ClassInfo ci = clsDic.get(new Id(kid));
+            if (ci != null) {
+                k = sampler.addKey(kid, classLabel(new Id(kid)), instanceSize(ci));
+            }
+        }
+        return k;
+    }
+
+    /**
+     * -recover: returns where to continue after the corrupt sub record at
+     * srpos of the heap dump record ending at endpos.  That is the next
+     * object record followed by two more plausible ones, or endpos if there
+     * is none.  The search moves the position along so that compressed
+     * input need not keep what it has passed.
+     */
+    private long resyncSubRecord(long srpos, long endpos, String what) {
+        long resume = recovery.resumePosition(srpos);
+        if (resume >= 0) {
+            return resume;
+        }
+        try {
+            for (long q = srpos + 1; resume < 0 && q < Math.min(endpos, buf.limit()); q += RESYNC_CHUNK) {
+                buf.position(q);
+                long end = Math.min(endpos, buf.limit());
+                resume = findObjectRecord(q, Math.min(q + RESYNC_CHUNK, end), end);
+            }
+        } catch (RuntimeException re) {
+            // the dump ends within the records tried
+            resume = -1;
+        }
+        if (resume < 0) {
+            resume = Math.min(endpos, buf.limit());
+        }
+        recovery.record(srpos, resume, what);
+        return resume;
+    }
+
+    /**
+     * Returns the first position in [from, to) where an object record
+     * starts that is followed by two more plausible records, or -1.
+     */
+    private long findObjectRecord(long from, long to, long endpos) {
+        for (long q = from; q < to; q++) {
+            long p = q;
+            int n = 0;
+            while (n < 3 && p < endpos && (p = plausibleObjectEnd(p, endpos)) >= 0) {
+                n++;
+            }
+            if (n == 3 || p == endpos) {
+                return q;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the object record at p if its tag, ids and sizes are
+     * consistent with the classes and the heap dump record, or -1.
+     */
+    private long plausibleObjectEnd(long p, long endpos) {
+        int ps = pointerSize;
+        if (p + 1 + 2L * ps + 8 > endpos) {
+            return -1;
+        }
+        byte srt = buf.get(p);
+        if (!isObjectRecord(srt) || readIdAt(p + 1) == 0) {
+            return -1;
+        }
+        long n = buf.getInt(p + 1 + ps + 4) & 0xffffffffL;
+        long end;
+        if (srt == HPROF_GC_INSTANCE_DUMP) {
+            ClassInfo ci = clsDic.get(new Id(readIdAt(p + 1 + ps + 4)));
+            long bytes = buf.getInt(p + 1 + 2 * ps + 4) & 0xffffffffL;
+            if (ci == null || instanceFieldBytes(ci) != bytes) {
+                return -1;
+            }
+            end = p + 1 + 2L * ps + 8 + bytes;
+        } else if (srt == HPROF_GC_OBJ_ARRAY_DUMP) {
+            if (clsDic.get(new Id(readIdAt(p + 1 + ps + 8))) == null) {
+                return -1;
+            }
+            end = p + 1 + 2L * ps + 8 + n * ps;
+        } else {
+            byte etype = buf.get(p + 1 + ps + 8);
+            if (etype < 4 || etype > 11) {
+                return -1;
+            }
+            end = p + 1 + ps + 9 + n * primitiveTypeSize(etype);
+        }
+        return end <= endpos ? end : -1;
+    }
+
+    /** Length of the field values of an INSTANCE_DUMP of the class, supers included. */
+    private int instanceFieldBytes(ClassInfo ci) {
+        if (ci.fieldBytes < 0) {
+            int n = 0;
+            for (ClassInfo c = ci; c != null; c = c.superid == 0 ? null : clsDic.get(new Id(c.superid))) {
+                if (c.fieldSpec != null) {
+                    for (FieldSpec fs : c.fieldSpec) {
+                        n += fieldSize(fs.type);
+                    }
+                }
+            }
+            ci.fieldBytes = n;
+        }
+        return ci.fieldBytes;
+    }
+
     private void process_HPROF_GC_PRIM_ARRAY_DUMP() {
         String srn = "HPROF_GC_PRIM_ARRAY_DUMP";
         // println "HPROF_GC_PRIM_ARRAY_DUMP"
         // is and stack trace id
+        long objpos = buf.position();
         Id id = readId();
         int stktrcsn = buf.getInt();
         int n_elements = buf.getInt();
         byte etype = buf.get();
 
-        logger.log(Level.FINE, srn + " id " + id + " elms " + n_elements + " type " + etype);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, srn + " id " + id + " elms " + n_elements + " type " + etype);
+        }
+
+        if (objectIndex != null && currentPass == 1) {
+            objectIndex.addArray(id.getValue(), objpos, ObjectIndex.primArrayClassOrd(etype), n_elements);
+        }
+        if (currentPass == 1 && layout == null) {
+            noteObjectId(id.getValue());
+        }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.beginObject(id.getValue());
+            heapGraph.endObject();
+        }
+        if (threadStacks && currentPass == 2 && traces.isStackRoot(id.getValue())) {
+            traces.setStackRootClass(id.getValue(), -etype);
+        }
 
-        int sz = 0;
+        long sz = 0;
         String elem_type_s = "";
         switch (etype) {
             case 4: // boolean
@@ -328,15 +1128,15 @@ public class HprofConverter {
                 break;
             case 5: // char
                 elem_type_s = "char";
-                sz = n_elements * 2;
+                sz = n_elements * 2L;
                 break;
             case 6: // float
                 elem_type_s = "float";
-                sz = n_elements * 4;
+                sz = n_elements * 4L;
                 break;
             case 7: // double
                 elem_type_s = "double";
-                sz = n_elements * 8;
+                sz = n_elements * 8L;
                 break;
             case 8: // byte
                 elem_type_s = "byte";
@@ -344,80 +1144,105 @@ public class HprofConverter {
                 break;
             case 9: // short
                 elem_type_s = "short";
-                sz = n_elements * 2;
+                sz = n_elements * 2L;
                 break;
             case 10: // int
                 elem_type_s = "int";
-                sz = n_elements * 4;
+                sz = n_elements * 4L;
                 break;
             case 11: // long
                 elem_type_s = "long";
-                sz = n_elements * 8;
+                sz = n_elements * 8L;
                 break;
             default:
                 logger.log(Level.SEVERE, "Unexpected primitive array element type " + etype);
             }
 
-        byte[] tbuf = new byte[sz];
-        buf.get(tbuf);
-
-        if (currentPass == 2 && etype == 5 ) {
-          int calen = sz / 2;
-          char[] ca = new char[calen];
-          for (int i = 0; i < calen; i++) {
-            ca[i] = (char)((0xff00 & (tbuf[i*2]<<8)) | (tbuf[i*2+1]&0xff));
-          }
+        long content_pos = buf.position();
+        // hashed before the content is passed, as streamed input cannot go back
+        if (duplicateArrays != null && currentPass == 2 && (etype == 5 || etype == 8)) {
+            recordArrayContent(id, etype, n_elements, content_pos, sz);
+        }
+        if (currentPass == 2 && etype == 5 && (dumpString || dumpCharArray)) {
+          char[] ca = new char[n_elements];
+          buf.getChars(ca);
 
           if (dumpString) {
-            // keep char array in a map
-            charArrayMap.put(id, ca);
+            // remember where the chars are; streamed input cannot go back for them
+            if (buf.randomAccess()) {
+              charArrayMap.put(id.getValue(), content_pos);
+            } else {
+              charArrayText.put(id.getValue(), toBytes(ca));
+            }
           }
 
           if (dumpCharArray) {
-            String stmp = new String(ca);
-            System.out.print(id.toHexString() + ": " + stmp);
-            System.out.print(" // " + calen + " ");
-            for (int i = 0; i < calen; i++) {
-              System.out.print(Integer.toHexString(ca[i]) + " ");
-            }
-            System.out.println("");
-            for (int i = 0; i < tbuf.length; i++) {
-              System.out.print(Integer.toHexString(tbuf[i]) + " ");
-            }
-            System.out.println("");
+            printCharArray(id, ca);
           }
+        } else {
+          buf.position(content_pos + sz);
         }
 
         if (convert && currentPass == 2) {
-            if (includeHeaderSize) {
-                sz += pointerSize*2 + 4;
-            }
-            hprof_out.println("ARR " + id + " (sz=" + sz + ", trace=0, nelems=" + n_elements + ", elem type=" + elem_type_s + ")");
+            hprof_out.println("ARR " + id + " (sz=" + primArraySize(etype, n_elements) + ", trace=" + stktrcsn + ", nelems=" + n_elements + ", elem type=" + elem_type_s + ")");
         //hprof_out.println "ARR ${Integer.toHexString(id)} (sz=${sz}, trace=0, nelems=${n_elements}, elem type=${elem_type_s})"
         }
+        if (histogram && currentPass == 2 && etype >= 4 && etype <= 11) {
+            long size = primArraySize(etype, n_elements);
+            primArrayCount[etype]++;
+            primArrayBytes[etype] += size;
+            if (idSorter != null) {
+                idSorter.add(id.getValue(), diffClassKey(elem_type_s + "[]"), size);
+            }
+        }
         if (currentPass == 1) {
             n_HPROF_GC_PRIM_ARRAY_DUMP++;
+            if (etype == 5 || etype == 8) {
+                textArrays++;
+            }
         }
     }
 
     private void process_HPROF_GC_OBJ_ARRAY_DUMP() {
         String srn = "HPROF_GC_OBJ_ARRAY_DUMP";
 
+        long objpos = buf.position();
         Id id = readId();
         int stktrcsn = buf.getInt();
         int n_elements = buf.getInt();
         Id ekid = readId();
 
-        logger.log(Level.FINE, "HPROF_GC_OBJ_ARRAY_DUMP id " + id + " nelms " + n_elements + " ecls " + ekid);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "HPROF_GC_OBJ_ARRAY_DUMP id " + id + " nelms " + n_elements + " ecls " + ekid);
+        }
 
+        if (objectIndex != null && currentPass == 1) {
+            objectIndex.addArray(id.getValue(), objpos, objectIndex.classOrd(ekid.getValue()), n_elements);
+        }
+        if (currentPass == 1 && layout == null) {
+            noteObjectId(id.getValue());
+        }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.beginObject(id.getValue());
+            heapGraph.addReference(ekid.getValue());
+        }
+        if (threadStacks && currentPass == 2 && traces.isStackRoot(id.getValue())) {
+            traces.setStackRootClass(id.getValue(), ekid.getValue());
+        }
 
-        if (convert && currentPass == 2) {
-            int sz = 4 * pointerSize + pointerSize * n_elements;
+        if (histogram && currentPass == 2) {
+            countObject(id, clsDic.get(ekid), ekid, objArraySize(n_elements));
+        }
+        int arrayOwnerKey = -1;
+        int cellOwner = -1;
+        if (collectionStats != null && currentPass == 2) {
+            collectionStats.arrayLength(id.getValue(), n_elements);
+            arrayOwnerKey = collectionStats.ownerKey(getNameForClassId(ekid));
+            cellOwner = collectionStats.cellArrayOwner(id.getValue());
+        }
+        if (convert && currentPass == 2) {
             String name = getNameForClassId(ekid);
-            if (includeHeaderSize) {
-                sz += pointerSize*4;
-            }
-            hprof_out.println("ARR " + id + " (sz=" + sz + ", trace=0, nelems=" + n_elements + ", elem type=" + name + "@" + ekid + ")");
+            hprof_out.println("ARR " + id + " (sz=" + objArraySize(n_elements) + ", trace=" + stktrcsn + ", nelems=" + n_elements + ", elem type=" + name + "@" + ekid + ")");
         //hprof_out.println "ARR ${Integer.toHexString(id)} (sz=${clsdic[kid].isize}, trace=0, nelems=${n_elements}, elem type=${name[cndic[ekid]]}@${Integer.toHexString(ekid)})"
         }
         for (int i = 0; i < n_elements; i++) {
@@ -425,6 +1250,16 @@ public class HprofConverter {
             if (convert && currentPass == 2 && val.getValue() != 0) {
                 hprof_out.println("\t[" + i + "]\t" + val);
             }
+            addGraphReference(val);
+            if (arrayOwnerKey >= 0 && val.getValue() != 0) {
+                collectionStats.owner(val.getValue(), arrayOwnerKey);
+            }
+            if (cellOwner >= 0 && val.getValue() != 0) {
+                collectionStats.addCell(cellOwner, val.getValue());
+            }
+        }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.endObject();
         }
         if (currentPass == 1) {
             n_HPROF_GC_OBJ_ARRAY_DUMP++;
@@ -435,6 +1270,7 @@ public class HprofConverter {
         String srn = "HPROF_GC_INSTANCE_DUMP";
 // println "HPROF_GC_INSTANCE_DUMP"
         // id + stack trace # 
+        long objpos = buf.position();
         Id id = readId();
         int stktrcn = buf.getInt();
         Id kid = readId();
@@ -442,13 +1278,47 @@ public class HprofConverter {
 
         //println "HPROF_GC_INSTANCE_DUMP ${Integer.toHexString(id)} cls ${Integer.toHexString(kid)} ${name[cndic[kid]]} ${pass}"
 
-        logger.fine(srn + " " + id + " cls " + kid + " " + getNameForClassId(kid));
-        //logger.log(Level.FINE, srn + " " + id + " cls " + kid + " " + getNameForClassId(kid));
-        logger.log(Level.FINE, " D: id " + id + " kid " + kid + " follow " + bytes_follow);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(srn + " " + id + " cls " + kid + " " + getNameForClassId(kid));
+            logger.log(Level.FINE, " D: id " + id + " kid " + kid + " follow " + bytes_follow);
+        }
+
+        if (objectIndex != null && currentPass == 1) {
+            // instance sizes are filled in per class when the index is frozen
+            objectIndex.add(id.getValue(), objpos, objectIndex.classOrd(kid.getValue()), ObjectIndex.CLASS_SIZE);
+        }
+        if (currentPass == 1 && layout == null) {
+            noteObjectId(id.getValue());
+        }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.beginObject(id.getValue());
+            heapGraph.addReference(kid.getValue());
+        }
+        if (threadStacks && currentPass == 2 && traces.isStackRoot(id.getValue())) {
+            traces.setStackRootClass(id.getValue(), kid.getValue());
+        }
 
+        long fields_pos = buf.position();
         if (currentPass == 1) {
-            byte[] tbuf = new byte[bytes_follow];
-            buf.get(tbuf);
+            if (stringValueIds != null && stringValueOffset >= 0 && kid.getValue() == stringClassId) {
+                long valueId = readIdAt(fields_pos + stringValueOffset);
+                if (valueId != 0) {
+                    stringValueIds.put(valueId, 1);
+                }
+            }
+            if (collectionStats != null) {
+                CollectionStats.Layout cl = collectionLayout(kid);
+                if (cl != null) {
+                    long size = cl.sizeType == 11 ? buf.getLong(fields_pos + cl.sizeOffset) : buf.getInt(fields_pos + cl.sizeOffset);
+                    if (cl.counterCell) {
+                        collectionStats.counterCell(id.getValue(), size);
+                    } else {
+                        collectionStats.add(id.getValue(), cl.classKey, size, readIdAt(fields_pos + cl.arrayOffset),
+                                cl.cellsOffset >= 0 ? readIdAt(fields_pos + cl.cellsOffset) : 0);
+                    }
+                }
+            }
+            buf.position(fields_pos + bytes_follow);
         } else if (currentPass == 2) {
             String cname = getNameForClassId(kid);
             if (cname == null) {
@@ -460,109 +1330,564 @@ public class HprofConverter {
             if (clsDic.get(kid) == null) {
                 logger.log(Level.SEVERE, "clsDic[" + kid + "] is null !");
             }
-            if (convert && currentPass == 2) {
-                ClassInfo ci = (ClassInfo) clsDic.get(kid);
-                int isize = 0;
-                if (ci != null) {
-                    isize = ci.isize;
+            ClassInfo kci = clsDic.get(kid);
+            if (histogram) {
+                countObject(id, kci, kid, instanceSize(kci));
+            }
+            if (projectionSlots != null) {
+                int b = projectionSlots.get(kid.getValue());
+                if (b >= 0) {
+                    rowText.setLength(0);
+                    FieldProjection.appendRow(rowText, bindings.get(b), id.getValue(), buf, fields_pos, pointerSize);
+                    rowOut.append(rowText).append('\n');
                 }
-                if (includeHeaderSize) {
-                    isize += pointerSize*2;
+            }
+            if (querySlots != null) {
+                int q = querySlots.get(kid.getValue());
+                if (q >= 0) {
+                    if (queryContext == null) {
+                        queryContext = new Query.Context(buf, objectIndex, querySchema(), pointerSize);
+                    }
+                    queryContext.id = id.getValue();
+                    queryContext.fieldsPos = fields_pos;
+                    queryTested++;
+                    Query.Bound qb = queryBindings.get(q);
+                    if (qb.test(queryContext)) {
+                        queryMatches++;
+                        rowText.setLength(0);
+                        qb.appendRow(rowText, queryContext);
+                        rowOut.append(rowText).append('\n');
+                    }
                 }
-                hprof_out.println("OBJ " + id + " (sz=" + isize + ", trace=0, class=" + cname + "@" + kid + ")");
-            //hprof_out.println "OBJ ${Integer.toHexString(id)} (sz=${clsdic[kid].isize}, trace=0, class=${cname}@${Integer.toHexString(kid)})"
             }
-            Id cid = kid;
-            while (cid.getValue() != 0) {
-                logger.log(Level.FINE, " field dump, cid " + cid);
-
-                ClassInfo ci = (ClassInfo) clsDic.get(cid);
-                if (ci == null) {
-                    logger.log(Level.SEVERE, "ci for " + cid + " is null.");
-                    break;
+            if (!walkInstanceFields) {
+                // none of the output below needs the field values
+                buf.position(fields_pos + bytes_follow);
+            } else {
+                if (convert && currentPass == 2) {
+                    hprof_out.println("OBJ " + id + " (sz=" + instanceSize(kci) + ", trace=" + stktrcn + ", class=" + cname + "@" + kid + ")");
+                //hprof_out.println "OBJ ${Integer.toHexString(id)} (sz=${clsdic[kid].isize}, trace=0, class=${cname}@${Integer.toHexString(kid)})"
                 }
-                logger.log(Level.FINE, cid.toString() + " " + ci);
-
-                if (ci.fieldSpec != null) {
-                    logger.log(Level.FINE, " fieldSpec.size " + ci.fieldSpec.size());
-
-                    for (int i = 0; i < ci.fieldSpec.size(); i++) {
-                        FieldSpec fs = (FieldSpec) ci.fieldSpec.get(i);
-                        switch (fs.type) {
-                            case 2: // object
-                                Id val = readId();
-
-                                if (convert && currentPass == 2 && val.getValue() != 0) {
-                                    hprof_out.println("\t" + fs.name + "\t" + val);
-                                }
-
-                                if (dumpString && currentPass == 2) {
-                                  if (fs.name.equals("value") && (cname.equals("java.lang.String") || cname.equals("java/lang/String"))) {
-                                    char[] ca = (char[])charArrayMap.get(val);
-                                    if (ca != null) {
-                                      String ts = new String(ca);
-                                      System.out.println("S: " + id + " " + ts);
-                                      ts = null;
-                                    } else {
-                                      pendingStrings.put(id, val);
+                boolean skipReferent = excludeWeak && kci != null && kci.weakReference;
+                Id cid = kid;
+                boolean fine = logger.isLoggable(Level.FINE);
+                while (cid.getValue() != 0) {
+                    if (fine) {
+                        logger.log(Level.FINE, " field dump, cid " + cid);
+                    }
+
+                    ClassInfo ci = clsDic.get(cid);
+                    if (ci == null) {
+                        logger.log(Level.SEVERE, "ci for " + cid + " is null.");
+                        break;
+                    }
+                    if (fine) {
+                        logger.log(Level.FINE, cid.toString() + " " + ci);
+                    }
+
+                    if (ci.fieldSpec != null) {
+                        if (fine) {
+                            logger.log(Level.FINE, " fieldSpec.size " + ci.fieldSpec.size());
+                        }
+
+                        for (int i = 0; i < ci.fieldSpec.size(); i++) {
+                            FieldSpec fs = ci.fieldSpec.get(i);
+                            switch (fs.type) {
+                                case 2: // object
+                                    Id val = readId();
+
+                                    if (convert && currentPass == 2 && val.getValue() != 0) {
+                                        hprof_out.println("\t" + fs.name + "\t" + val);
+                                    }
+
+                                    if (!skipReferent || !ci.referenceClass || !"referent".equals(fs.name)) {
+                                        addGraphReference(val);
                                     }
-                                  } 
-                                }
-                                break;
-                            case 4: // boolean
-                                buf.get();
-                                break;
-                            case 5: // char
-                                buf.getChar();
-                                break;
-                            case 6: // float
-                                buf.getFloat();
-                                break;
-                            case 7: // double
-                                buf.getDouble();
-                                break;
-                            case 8: // byte
-                                buf.get();
-                                break;
-                            case 9: // short
-                                buf.getShort();
-                                break;
-                            case 10: // int
-                                buf.getInt();
-                                break;
-                            case 11: // long
-                                buf.getLong();
-                                break;
-                            default:
-                                logger.log(Level.SEVERE, "unknown ci.fieldSpec[i].type " + fs.type);
+
+                                    if (collectionStats != null && val.getValue() != 0) {
+                                        if (fs.ownerKey < 0 || fs.ownerStats != collectionStats) {
+                                            fs.ownerKey = collectionStats.ownerKey(getNameForClassId(cid) + "." + fs.name);
+                                            fs.ownerStats = collectionStats;
+                                        }
+                                        collectionStats.owner(val.getValue(), fs.ownerKey);
+                                    }
+
+                                    if (dumpString && currentPass == 2) {
+                                      if (fs.name.equals("value") && (cname.equals("java.lang.String") || cname.equals("java/lang/String"))) {
+                                        String ts = charArrayString(val.getValue());
+                                        if (ts != null) {
+                                          System.out.println("S: " + id + " " + ts);
+                                          ts = null;
+                                        } else {
+                                          pendingStrings.put(id.getValue(), val.getValue());
+                                        }
+                                      } 
+                                    }
+                                    break;
+                                case 4: // boolean
+                                    buf.get();
+                                    break;
+                                case 5: // char
+                                    buf.getChar();
+                                    break;
+                                case 6: // float
+                                    buf.getFloat();
+                                    break;
+                                case 7: // double
+                                    buf.getDouble();
+                                    break;
+                                case 8: // byte
+                                    buf.get();
+                                    break;
+                                case 9: // short
+                                    buf.getShort();
+                                    break;
+                                case 10: // int
+                                    buf.getInt();
+                                    break;
+                                case 11: // long
+                                    buf.getLong();
+                                    break;
+                                default:
+                                    logger.log(Level.SEVERE, "unknown ci.fieldSpec[i].type " + fs.type);
+                            }
                         }
-                    }
-                } else {
-                    logger.log(Level.FINE, "fieldSpec is null");
+                    } else {
+                        logger.log(Level.FINE, "fieldSpec is null");
 
+                    }
+                    cid = new Id(ci.superid);
                 }
-                cid = new Id(ci.superid);
             }
         }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.endObject();
+        }
         if (currentPass == 1) {
             n_HPROF_GC_INSTANCE_DUMP++;
         }
     }
 
+    /** Shallow size of an instance as reported in the ASCII output and histograms. */
+    private int instanceSize(ClassInfo ci) {
+        if (legacyLayout) {
+            int isize = 0;
+            if (ci != null) {
+                isize = ci.isize;
+            }
+            if (includeHeaderSize) {
+                isize += pointerSize*2;
+            }
+            return isize;
+        }
+        ObjectLayout ol = objectLayout();
+        if (ci == null) {
+            return ol.instanceSize(0, 0, 0, 0);
+        }
+        if (ci.size < 0) {
+            // fields by size, supers included
+            int[] n = new int[9];
+            for (ClassInfo c = ci; c != null; c = c.superid == 0 ? null : clsDic.get(new Id(c.superid))) {
+                if (c.fieldSpec != null) {
+                    for (FieldSpec fs : c.fieldSpec) {
+                        n[ol.elementSize(fs.type)]++;
+                    }
+                }
+            }
+            ci.size = ol.instanceSize(n[8], n[4], n[2], n[1]);
+        }
+        return ci.size;
+    }
+
+    private long objArraySize(int n_elements) {
+        if (legacyLayout) {
+            long sz = 4 * pointerSize + (long) pointerSize * n_elements;
+            if (includeHeaderSize) {
+                sz += pointerSize*4;
+            }
+            return sz;
+        }
+        return objectLayout().arraySize(2, n_elements);
+    }
+
+    private long primArraySize(byte etype, int n_elements) {
+        if (legacyLayout) {
+            long sz = (long) primitiveTypeSize(etype) * n_elements;
+            if (includeHeaderSize) {
+                sz += pointerSize*2 + 4;
+            }
+            return sz;
+        }
+        return objectLayout().arraySize(etype, n_elements);
+    }
+
+    /** Size of a reference field or array element. */
+    private int referenceSize() {
+        return legacyLayout ? pointerSize : objectLayout().oopSize;
+    }
+
+    /**
+     * Returns the object layout of the dump.  Unless -layout names one, it
+     * is settled from the object ids seen when a size is first needed, which
+     * is when the object index is frozen after pass 1.  Under -sample only
+     * the class dumps leading the heap dump are seen before that.
+     */
+    private ObjectLayout objectLayout() {
+        if (layout == null) {
+            if (layoutModel.equals("auto")) {
+                layout = ObjectLayout.detect(pointerSize, minObjectId, maxObjectId, objectIdBits, objectIdSamples, objectAlignment);
+            } else {
+                layout = ObjectLayout.forModel(layoutModel, objectAlignment == 0 ? 8 : objectAlignment);
+            }
+        }
+        return layout;
+    }
+
+    /** Notes an object id for ObjectLayout.detect. */
+    private void noteObjectId(long id) {
+        if (Long.compareUnsigned(id, minObjectId) < 0) {
+            minObjectId = id;
+        }
+        if (Long.compareUnsigned(id, maxObjectId) > 0) {
+            maxObjectId = id;
+        }
+        objectIdBits |= id;
+        objectIdSamples++;
+    }
+
+    /** Adds an instance or object array to the per class histogram counters. */
+    private void countObject(Id id, ClassInfo ci, Id kid, long size) {
+        if (ci == null) {
+            return;
+        }
+        ci.count++;
+        ci.bytes += size;
+        if (idSorter != null) {
+            if (ci.diffKey < 0) {
+                ci.diffKey = diffClassKey(getNameForClassId(kid));
+            }
+            idSorter.add(id.getValue(), ci.diffKey, size);
+        }
+    }
+
+    private int diffClassKey(String name) {
+        Integer key = diffClassKeys.get(name);
+        if (key == null) {
+            key = diffClassNames.size();
+            diffClassKeys.put(name, key);
+            diffClassNames.add(name);
+        }
+        return key;
+    }
+
+    private int fieldSize(byte type) {
+        return type == 2 ? pointerSize : primitiveTypeSize(type);
+    }
+
+    /**
+     * Returns the offset of an instance field within the field values of an
+     * INSTANCE_DUMP record of class kid, or -1 if there is no such field.
+     * The fields of the class itself come first, then those of its supers.
+     */
+    private int fieldOffset(Id kid, String name) {
+        int[] offset = new int[1];
+        return findField(kid, name, offset) != null ? offset[0] : -1;
+    }
+
+    /**
+     * Finds an instance field of class kid or its supers and stores its
+     * offset in offset[0]; returns null if there is no such field.
+     */
+    private FieldSpec findField(Id kid, String name, int[] offset) {
+        offset[0] = 0;
+        Id cid = kid;
+        while (cid.getValue() != 0) {
+            ClassInfo ci = clsDic.get(cid);
+            if (ci == null) {
+                return null;
+            }
+            if (ci.fieldSpec != null) {
+                for (FieldSpec fs : ci.fieldSpec) {
+                    if (name.equals(fs.name)) {
+                        return fs;
+                    }
+                    offset[0] += fieldSize(fs.type);
+                }
+            }
+            cid = new Id(ci.superid);
+        }
+        return null;
+    }
+
+    /** Binds the -query query to the classes it selects, after pass 1. */
+    private void bindQuery() {
+        querySlots = new LongIntHashMap();
+        queryBindings = new ArrayList<>();
+        queryTested = 0;
+        queryMatches = 0;
+        Query.Schema schema = querySchema();
+        boolean found = false;
+        for (Map.Entry<Id,ClassInfo> e : clsDic.entrySet()) {
+            String cname = getNameForClassId(e.getKey());
+            if (cname == null || !isClassName(cname, query.className)) {
+                continue;
+            }
+            found = true;
+            try {
+                Query.Bound qb = query.bind(cname.replace('/', '.'), e.getKey().getValue(), schema);
+                querySlots.put(e.getKey().getValue(), queryBindings.size());
+                queryBindings.add(qb);
+            } catch (IllegalArgumentException iae) {
+                logger.log(Level.WARNING, "-query: class " + cname + ": " + iae.getMessage());
+            }
+        }
+        if (!found) {
+            logger.log(Level.WARNING, "-query: no class " + query.className + " in " + currentPath);
+        }
+        rowOut.println(query.header());
+    }
+
+    private static boolean isCompressed(String path) {
+        try {
+            return HprofBuffer.isGzip(new File(path));
+        } catch (IOException ioe) {
+            // reported when the file is opened
+            return false;
+        }
+    }
+
+    private Query.Schema querySchema() {
+        return new Query.Schema() {
+            private final int[] offset = new int[1];
+
+            @Override
+            public int fieldOffset(long classId, String name, byte[] type) {
+                FieldSpec fs = findField(new Id(classId), name, offset);
+                if (fs == null) {
+                    return -1;
+                }
+                type[0] = fs.type;
+                return offset[0];
+            }
+        };
+    }
+
+    /** Binds the -fields projections to the classes of the dump, after pass 1. */
+    private void bindProjections() {
+        projectionSlots = new LongIntHashMap();
+        bindings = new ArrayList<>();
+        int[] offset = new int[1];
+        for (FieldProjection p : projections) {
+            boolean found = false;
+            for (Map.Entry<Id,ClassInfo> e : clsDic.entrySet()) {
+                String cname = getNameForClassId(e.getKey());
+                if (cname == null || !isClassName(cname, p.className)) {
+                    continue;
+                }
+                found = true;
+                FieldProjection.Binding b = new FieldProjection.Binding(cname.replace('/', '.'), p.fields.length);
+                for (int i = 0; i < p.fields.length; i++) {
+                    FieldSpec fs = findField(e.getKey(), p.fields[i], offset);
+                    if (fs == null) {
+                        logger.log(Level.WARNING, "class " + cname + " has no instance field " + p.fields[i]);
+                        b.offsets[i] = -1;
+                    } else {
+                        b.offsets[i] = offset[0];
+                        b.types[i] = fs.type;
+                    }
+                }
+                projectionSlots.put(e.getKey().getValue(), bindings.size());
+                bindings.add(b);
+            }
+            if (!found) {
+                logger.log(Level.WARNING, "no class " + p.className + " in " + currentPath);
+            }
+            rowOut.println(p.header());
+        }
+    }
+
+    /**
+     * Returns the collection layout for instances of kid, or null if kid is
+     * not a known collection class or a subclass of one.  The result is
+     * cached in the ClassInfo.
+     */
+    private CollectionStats.Layout collectionLayout(Id kid) {
+        ClassInfo ci = clsDic.get(kid);
+        if (ci == null) {
+            return null;
+        }
+        if (!ci.collectionChecked) {
+            ci.collectionChecked = true;
+            if (isClassName(getNameForClassId(kid), CollectionStats.COUNTER_CELL)) {
+                int valueOffset = fieldOffset(kid, "value");
+                if (valueOffset >= 0) {
+                    ci.collection = new CollectionStats.Layout(-1, -1, valueOffset, (byte) 11, -1, true);
+                }
+                return ci.collection;
+            }
+            for (Id cid = kid; cid.getValue() != 0; ) {
+                String cname = getNameForClassId(cid);
+                for (String[] known : CollectionStats.KNOWN) {
+                    if (isClassName(cname, known[0])) {
+                        int arrayOffset = fieldOffset(kid, known[1]);
+                        int sizeOffset = fieldOffset(kid, known[2]);
+                        if (arrayOffset >= 0 && sizeOffset >= 0) {
+                            byte sizeType = known[2].equals("baseCount") ? (byte) 11 : (byte) 10;
+                            int cellsOffset = sizeType == 11 ? fieldOffset(kid, "counterCells") : -1;
+                            ci.collection = new CollectionStats.Layout(collectionStats.classKey(getNameForClassId(kid)),
+                                    arrayOffset, sizeOffset, sizeType, cellsOffset, false);
+                        }
+                        return ci.collection;
+                    }
+                }
+                ClassInfo sci = clsDic.get(cid);
+                if (sci == null) {
+                    break;
+                }
+                cid = new Id(sci.superid);
+            }
+        }
+        return ci.collection;
+    }
+
+    /**
+     * Hashes a char[] or byte[] in place and counts it as a duplicate
+     * String value if a String referring to it was seen in pass 1.
+     */
+    private void recordArrayContent(Id id, byte etype, int n_elements, long pos, long len) {
+        long hash = DuplicateTable.contentHash(buf, pos, len);
+        long size = primArraySize(etype, n_elements);
+        if (stringValueIds.containsKey(id.getValue())) {
+            int ssize = instanceSize(clsDic.get(new Id(stringClassId)));
+            keepPreview(duplicateStrings, duplicateStrings.add(hash, etype, n_elements, size + ssize, pos), true);
+        } else {
+            keepPreview(duplicateArrays, duplicateArrays.add(hash, etype, n_elements, size, pos), etype == 5);
+        }
+    }
+
+    /** Streamed input cannot be read again after the pass, so previews are taken now. */
+    private void keepPreview(DuplicateTable t, int slot, boolean text) {
+        if (slot >= 0 && !buf.randomAccess()) {
+            t.setPreview(slot, previewContent(t.type(slot), t.position(slot), t.length(slot), text));
+        }
+    }
+
+    private void addGraphReference(Id ref) {
+        addGraphReference(ref.getValue());
+    }
+
+    private void addGraphReference(long ref) {
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.addReference(ref);
+        }
+    }
+
+    private void addGraphRoot(Id id, byte kind, int thread) {
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.addRoot(id.getValue(), kind, thread);
+        }
+    }
+
     private String getNameForClassId(Id cid) {
+        ClassInfo ci = clsDic.get(cid);
+        if (ci != null && ci.name != null) {
+            return ci.name;
+        }
         String name = "null";
-        Id nameid = (HprofConverter.Id) cnDic.get(cid);
-        if (nameid != null) {
-            name = (String) nameMap.get(nameid);
+        long nameid = cnDic.get(cid.getValue());
+        if (nameid != 0) {
+            name = nameMap.get(nameid);
+            if (ci != null && name != null) {
+                ci.name = name;
+                budget.charge(MemoryBudget.CLASSES, 40 + 2 * name.length());
+            }
         }
         return name;
     }
 
+    private static char[] toChars(byte[] b) {
+        char[] ca = new char[b.length / 2];
+        ByteBuffer.wrap(b).asCharBuffer().get(ca);
+        return ca;
+    }
+
+    private static byte[] toBytes(char[] ca) {
+        byte[] b = new byte[ca.length * 2];
+        ByteBuffer.wrap(b).asCharBuffer().put(ca);
+        return b;
+    }
+
+    /**
+     * Prints a char[] for -dump_char_array: its text, then each char and
+     * each byte of it (sign extended, as Integer.toHexString(byte) did) in
+     * hex.  The hex lines are ASCII and are formatted into a reused byte
+     * buffer written in one call.
+     */
+    private void printCharArray(Id id, char[] ca) {
+        System.out.print(id.toHexString() + ": " + new String(ca));
+        System.out.print(" // " + ca.length + " ");
+        // at most 4 digits and a space per char, 8 digits and a space per byte
+        int need = ca.length * 23 + 2 * LINE_SEPARATOR.length;
+        if (hexLine.length < need) {
+            hexLine = new byte[Math.max(need, hexLine.length * 2)];
+        }
+        byte[] b = hexLine;
+        int n = 0;
+        for (char c : ca) {
+            n = appendHex(b, n, c);
+            b[n++] = ' ';
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, b, n, LINE_SEPARATOR.length);
+        n += LINE_SEPARATOR.length;
+        for (char c : ca) {
+            n = appendHex(b, n, (byte) (c >>> 8));
+            b[n++] = ' ';
+            n = appendHex(b, n, (byte) c);
+            b[n++] = ' ';
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, b, n, LINE_SEPARATOR.length);
+        n += LINE_SEPARATOR.length;
+        System.out.write(b, 0, n);
+    }
+
+    /** Appends v as Integer.toHexString(v) would format it. */
+    private static int appendHex(byte[] b, int n, int v) {
+        int shift = Math.max(0, (31 - Integer.numberOfLeadingZeros(v)) & ~3);
+        for (; shift >= 0; shift -= 4) {
+            b[n++] = HEX_DIGITS[(v >>> shift) & 0xf];
+        }
+        return n;
+    }
+
+    /** Returns the chars of a char[] remembered for -dump_string, or null. */
+    private String charArrayString(long id) {
+        long pos = charArrayMap.get(id);
+        if (pos != 0) {
+            // the element count and type precede the elements
+            char[] ca = new char[buf.getInt(pos - 5)];
+            buf.getChars(pos, ca);
+            return new String(ca);
+        }
+        byte[] b = charArrayText.bytes(id);
+        return b != null ? new String(toChars(b)) : null;
+    }
+
     private void process_HPROF_GC_CLASS_DUMP() {
         String srn = "HPROF_GC_CLASS_DUMP";
         // class id
+        long objpos = buf.position();
         Id id = readId();
 
+        if (objectIndex != null && currentPass == 1) {
+            objectIndex.add(id.getValue(), objpos, ObjectIndex.CLASS_OBJECT, 0);
+        }
+        if (currentPass == 1 && layout == null) {
+            noteObjectId(id.getValue());
+        }
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.beginObject(id.getValue());
+        }
+
         String name = "null";
 
         logger.log(Level.FINE, srn + " " + id.toString() + " " + name);
@@ -570,24 +1895,31 @@ public class HprofConverter {
         int stksn = buf.getInt();
 
         if (convert && currentPass == 1) {
-            hprof_out.println("CLS " + id + " (name=" + getNameForClassId(id) + ", trace=0)");
+            hprof_out.println("CLS " + id + " (name=" + getNameForClassId(id) + ", trace=" + stksn + ")");
         }
 
         Id superid = readId();
+        addGraphReference(superid);
 
         if (convert && currentPass == 1 && (superid.getValue() != 0)) {
             hprof_out.println("\tsuper\t" + superid);
         }
 
         Id loaderid = readId();
+        addGraphReference(loaderid);
+        if (classLoaders != null && currentPass == 1) {
+            classLoaders.add(id.getValue(), loaderid.getValue());
+        }
 
         if (convert && currentPass == 1 && (loaderid.getValue() != 0)) {
             hprof_out.println("\tloader\t" + loaderid);
         }
 
         Id signersid = readId();
+        addGraphReference(signersid);
 
         Id domainid = readId();
+        addGraphReference(domainid);
 
         if (convert && currentPass == 1 && (domainid.getValue() != 0)) {
             hprof_out.println("\tdomain\t" + domainid);
@@ -604,52 +1936,37 @@ public class HprofConverter {
         if (currentPass == 1) {
             cci = new ClassInfo(superid.getValue(), instsize);
             clsDic.put(id, cci);
+            budget.charge(MemoryBudget.CLASSES, ClassInfo.ESTIMATED_SIZE);
             //logger.log(Level.FINE, srn + " " + id + " new " + cci);    
             logger.log(Level.FINE, srn + " new " + cci);
         }
 
         int cpoolsize = buf.getShort();
 
-        logger.log(Level.FINE, "id " + id + " super " + superid + " isz " + instsize + " cpsz " + cpoolsize);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "id " + id + " super " + superid + " isz " + instsize + " cpsz " + cpoolsize);
+        }
+        if (currentPass == 1) {
+            statics.beginClass(id.getValue());
+        }
 
-        // TODO constant pool entries are not dumped
         for (int i = 0; i < cpoolsize; i++) {
-            int cpidx = buf.getShort();
-            int cpetype = buf.get();
-
-            logger.log(Level.FINE, "  cp " + Integer.toHexString(cpidx) + " type " + cpetype);
+            int cpidx = buf.getShort() & 0xffff;
+            byte cpetype = buf.get();
 
-            switch (cpetype) {
-                case 2: // object
-                    readId();
-                    break;
-                case 4: // boolean
-                    buf.get();
-                    break;
-                case 5: // char
-                    buf.getChar();
-                    break;
-                case 6: // float
-                    buf.getFloat();
-                    break;
-                case 7: // double
-                    buf.getDouble();
-                    break;
-                case 8: // byte
-                    buf.get();
-                    break;
-                case 9: // short
-                    buf.getShort();
-                    break;
-                case 10: // int
-                    buf.getInt();
-                    break;
-                case 11: // long
-                    buf.getLong();
-                    break;
-                default:
-                    logger.log(Level.SEVERE, "ERROR: unknown constant pool entry type " + cpetype);
-                    System.exit(1);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "  cp " + Integer.toHexString(cpidx) + " type " + cpetype);
+            }
+            if (!isBasicType(cpetype)) {
+                if (recover) {
+                    throw new IllegalStateException("unknown constant pool entry type " + cpetype);
+                }
+                logger.log(Level.SEVERE, "ERROR: unknown constant pool entry type " + cpetype);
+                System.exit(1);
+            }
+            long value = readValue(cpetype);
+            if (currentPass == 1) {
+                statics.addConstant(cpidx, cpetype, value);
             }
         }
 
@@ -657,76 +1974,122 @@ public class HprofConverter {
 
         assert (n_static_fields >= 0);
 
-        logger.log(Level.FINE, "  n_static_fields " + n_static_fields);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "  n_static_fields " + n_static_fields);
+        }
 
         for (int i = 0; i < n_static_fields; i++) {
-            Id nid = readId();
-            String fname = (String) nameMap.get(nid);
+            long nameid = readIdValue();
             byte type = buf.get();
-            switch (type) {
-                case 2: // object
-                    Id sfid = readId();
-                    logger.log(Level.FINE, String.format("  %5d sfid %x %s", i, sfid.getValue(), fname));
-                    if (convert && currentPass == 1 && (sfid.getValue() != 0)) {
-                        hprof_out.println("\tstatic " + fname + "\t" + sfid);
-                    }
-                    break;
-                case 4: // boolean
-                    buf.get();
-                    break;
-                case 5: // char
-                    buf.getChar();
-                    break;
-                case 6: // float
-                    buf.getFloat();
-                    break;
-                case 7: // double
-                    buf.getDouble();
-                    break;
-                case 8: // byte
-                    buf.get();
-                    break;
-                case 9: // short
-                    buf.getShort();
-                    break;
-                case 10: // int
-                    buf.getInt();
-                    break;
-                case 11: // long
-                    buf.getLong();
-                    break;
-                default:
-                    logger.log(Level.SEVERE, "ERROR: unknown static field type " + type);
+            if (!isBasicType(type)) {
+                if (recover) {
+                    // its value cannot be skipped, so the rest of the record is lost
+                    throw new IllegalStateException("unknown static field type " + type);
+                }
+                logger.log(Level.SEVERE, "ERROR: unknown static field type " + type);
+                continue;
+            }
+            long value = readValue(type);
+            if (currentPass == 1) {
+                statics.addStatic(nameid, type, value);
+            }
+            if (type == 2) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, String.format("  %5d sfid %x %s", i, value, nameMap.get(nameid)));
+                }
+                if (convert && currentPass == 1 && value != 0) {
+                    hprof_out.println("\tstatic " + nameMap.get(nameid) + "\t" + Long.toHexString(value));
+                }
+                addGraphReference(value);
             }
         }
 
         int n_instance_fields = buf.getShort();
 
-        logger.log(Level.FINE, "  n_instance_fields " + n_instance_fields);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "  n_instance_fields " + n_instance_fields);
+        }
 
+        if (layoutCache != null && cci != null) {
+            readCachedFields(id, cci, n_instance_fields);
+            n_instance_fields = 0;
+        }
         for (int i = 0; i < n_instance_fields; i++) {
             Id fid = readId();
-            String fname = (String) nameMap.get(fid);
+            // names are only kept in pass 1
+            String fname = cci != null || logger.isLoggable(Level.FINE) ? nameMap.get(fid.getValue()) : null;
             byte ftype = buf.get();
-            logger.log(Level.FINE, String.format("  %4d %x ift %d %s", i, fid.getValue(), ftype, fname));
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, String.format("  %4d %x ift %d %s", i, fid.getValue(), ftype, fname));
+            }
 
             if (currentPass == 1) {
                 if (cci != null) {
                     cci.addFieldSpec(new FieldSpec(ftype, fname));
+                    budget.charge(MemoryBudget.CLASSES, FieldSpec.ESTIMATED_SIZE);
                 }
             //clsdic[id].addFieldSpec(new FieldSpec(type: ftype, name: fname))
             }
         }
         
+        if (heapGraph != null && currentPass == 2) {
+            heapGraph.endObject();
+        }
+        if (stringValueIds != null && currentPass == 1 && isClassName(getNameForClassId(id), "java.lang.String")) {
+            stringClassId = id.getValue();
+            stringValueOffset = fieldOffset(id, "value");
+        }
         if (currentPass == 1) {
             n_HPROF_GC_CLASS_DUMP++;
         }
     }
 
+    /**
+     * Pass 1 with -layout_cache: reads the instance fields of a class and
+     * takes its name and FieldSpecs from the cache when they match a cached
+     * layout.  Otherwise they are created and the layout is cached.
+     */
+    private void readCachedFields(Id id, ClassInfo cci, int n) {
+        byte[] cname = nameMap.bytes(cnDic.get(id.getValue()));
+        byte[][] names = new byte[n][];
+        byte[] types = new byte[n];
+        boolean named = cname != null;
+        for (int i = 0; i < n; i++) {
+            names[i] = nameMap.bytes(readIdValue());
+            types[i] = buf.get();
+            named &= names[i] != null;
+        }
+        if (!named) {
+            // not cacheable; a missing name is kept as null like without the cache
+            for (int i = 0; i < n; i++) {
+                cci.addFieldSpec(new FieldSpec(types[i], names[i] == null ? null : new String(names[i], StandardCharsets.UTF_8)));
+            }
+        } else {
+            long key = ClassLayoutCache.key(cname, names, types);
+            int e = layoutCache.find(key, cname, names, types);
+            if (e >= 0) {
+                cci.name = layoutCache.className(e);
+                cci.fieldSpec = layoutCache.fieldSpecs(e);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    cci.addFieldSpec(new FieldSpec(types[i], new String(names[i], StandardCharsets.UTF_8)));
+                }
+                cci.name = new String(cname, StandardCharsets.UTF_8);
+                if (n > 0) {
+                    cci.fieldSpec = Collections.unmodifiableList(cci.fieldSpec);
+                }
+                layoutCache.add(key, cname, names, types, cci.name, cci.fieldSpec);
+            }
+            budget.charge(MemoryBudget.CLASSES, 40 + 2 * cci.name.length());
+        }
+        budget.charge(MemoryBudget.CLASSES, (long) FieldSpec.ESTIMATED_SIZE * n);
+    }
+
     private void process_HPROF_GC_ROOT_MONITOR_USED() {
         String srn = "HPROF_GC_ROOT_MONITOR_USED";
         Id tid = readId();
         logger.log(Level.FINE, srn + " " + tid.toString());
+        addGraphRoot(tid, HPROF_GC_ROOT_MONITOR_USED, 0);
         if (convert && currentPass == 1) {
             hprof_out.println("ROOT " + tid + " (kind=<busy monitor>)");
         }
@@ -737,6 +2100,7 @@ public class HprofConverter {
         Id tid = readId();
         int tsn = buf.getInt();
         logger.log(Level.FINE, srn + " " + tid.toString() + " thrsn " + tsn);
+        addGraphRoot(tid, HPROF_GC_ROOT_THREAD_BLOCK, tsn);
         if (convert && currentPass == 1) {
             hprof_out.println("ROOT " + tid + " (kind=<thread block>, thread=" + tsn + ")");
         }
@@ -746,13 +2110,9 @@ public class HprofConverter {
         String srn = "HPROF_GC_ROOT_STICKY_CLASS";
         Id tid = readId();
         logger.log(Level.FINE, srn + " " + tid.toString());
+        addGraphRoot(tid, HPROF_GC_ROOT_STICKY_CLASS, 0);
         if (convert && currentPass == 1) {
-            String name = "null";
-            Id nameid = (HprofConverter.Id) cnDic.get(tid);
-            if (nameid != null) {
-                name = (String) nameMap.get(nameid);
-            }
-            hprof_out.println("ROOT " + tid + " (kind=<system class>, name=" + name + ")");
+            hprof_out.println("ROOT " + tid + " (kind=<system class>, name=" + getNameForClassId(tid) + ")");
         }
     }
 
@@ -760,6 +2120,7 @@ public class HprofConverter {
         Id tid = readId();
         int tsn = buf.getInt();
         logger.log(Level.FINE, "HPROF_GC_ROOT_NATIVE_STACK " + tid.toString() + " thrsn " + Integer.toHexString(tsn));
+        addGraphRoot(tid, HPROF_GC_ROOT_NATIVE_STACK, tsn);
     }
 
     private void process_HPROF_GC_ROOT_JAVA_FRAME() {
@@ -767,8 +2128,12 @@ public class HprofConverter {
         int tsn = buf.getInt();
         int frn = buf.getInt();
         logger.log(Level.FINE, "HPROF_GC_ROOT_JAVA_FRAME " + tid.toString() + " tsn " + Integer.toHexString(tsn) + " frn " + Integer.toHexString(frn));
+        addGraphRoot(tid, HPROF_GC_ROOT_JAVA_FRAME, tsn);
+        if (threadStacks && currentPass == 1) {
+            traces.addStackRoot(tid.getValue(), HPROF_GC_ROOT_JAVA_FRAME, tsn, frn);
+        }
         if (convert && currentPass == 1) {
-            hprof_out.println("ROOT " + tid.toHexString() + " (kind=<Java stack>, thread=" + Integer.toHexString(tsn) + ", frame=0)");
+            hprof_out.println("ROOT " + tid.toHexString() + " (kind=<Java stack>, thread=" + Integer.toHexString(tsn) + ", frame=" + frn + ")");
         }
     }
 
@@ -777,12 +2142,17 @@ public class HprofConverter {
         int tsn = buf.getInt();
         int frn = buf.getInt();
         logger.log(Level.FINE, "HPROF_GC_ROOT_JNI_LOCAL " + tid.toString() + " tsn " + Integer.toHexString(tsn) + " frn " + Integer.toHexString(frn));
+        addGraphRoot(tid, HPROF_GC_ROOT_JNI_LOCAL, tsn);
+        if (threadStacks && currentPass == 1) {
+            traces.addStackRoot(tid.getValue(), HPROF_GC_ROOT_JNI_LOCAL, tsn, frn);
+        }
     }
 
     private void process_HPROF_GC_ROOT_JNI_GLOBAL() {
         Id tid = readId();
         Id jni_gr_id = readId();
         logger.log(Level.FINE, "HPROF_GC_ROOT_JNI_GLOBAL " + tid.toString() + " grid " + jni_gr_id);
+        addGraphRoot(tid, HPROF_GC_ROOT_JNI_GLOBAL, 0);
 
         if (convert && currentPass == 1) {
             hprof_out.println("ROOT " + tid.toHexString() + " (kind=<JNI global ref>, id=0, trace=0)");
@@ -794,9 +2164,13 @@ public class HprofConverter {
         int tseq = buf.getInt();
         int stktrcseq = buf.getInt();
         logger.log(Level.FINE, "HPROF_GC_ROOT_THREAD_OBJ " + tid.toString());
+        addGraphRoot(tid, HPROF_GC_ROOT_THREAD_OBJ, tseq);
+        if (currentPass == 1) {
+            traces.addThreadRoot(tseq, tid.getValue(), stktrcseq);
+        }
 
         if (convert && currentPass == 1) {
-            hprof_out.println("ROOT " + tid.toHexString() + " (kind=<thread>, id=" + Integer.toHexString(tseq) + ", trace=0)");
+            hprof_out.println("ROOT " + tid.toHexString() + " (kind=<thread>, id=" + Integer.toHexString(tseq) + ", trace=" + stktrcseq + ")");
         }
     }
 
@@ -804,6 +2178,7 @@ public class HprofConverter {
         Id tid = readId();
 
         logger.log(Level.FINE, "HPROF_GC_ROOT_UNKNOWN " + tid.toString());
+        addGraphRoot(tid, HPROF_GC_ROOT_UNKNOWN, 0);
 
         if (convert && currentPass == 1) {
             hprof_out.println("ROOT " + tid.toHexString() + " (kind=<unknown>)");
@@ -818,10 +2193,22 @@ public class HprofConverter {
         try {
             if (pass == 2 && buf != null) {
                 buf.rewind();
+            } else if (follow) {
+                if (file.exists() && HprofBuffer.isGzip(file)) {
+                    logger.log(Level.SEVERE, "ERROR: -follow cannot read compressed file " + path);
+                    return;
+                }
+                buf = new MappedHprofBuffer(file);
+                while (buf.limit() < HEADER_SIZE) {
+                    if (!waitForGrowth(file)) {
+                        logger.log(Level.SEVERE, "ERROR: file " + path + " has no complete hprof header.");
+                        return;
+                    }
+                }
             } else {
-                RandomAccessFile raf = new RandomAccessFile(file, "r");
-                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                buf = HprofBuffer.open(file, gzThreads);
             }
+            dumpEnded = false;
 
             readHeader(pass == 1);
             if (convert && pass == 1) {
@@ -830,14 +2217,45 @@ public class HprofConverter {
 
             int countUtf8 = 0, countLoadClass = 0, countHeapDump = 0, countOther = 0;
 	    Map<Integer,Integer> tagCountMap = new HashMap<>();
-            while (buf.position() < buf.limit()) {
-                byte tag = buf.get();
-                int eltms = buf.getInt();
-                remaining = buf.getInt();
-
-		Integer count = tagCountMap.get((int)tag);
-		if (count == null) {
-	          tagCountMap.put((int)tag, 1);
+            while (true) {
+                if (follow && pass == 1 && !dumpEnded) {
+                    waitForRecord(file);
+                }
+                if (!buf.hasRemaining()) {
+                    break;
+                }
+                if (follow && !recordAvailable()) {
+                    logger.log(Level.WARNING, "incomplete record at offset " + buf.position()
+                            + " of " + path + "; the rest of the file is ignored.");
+                    buf.limit(buf.position());
+                    break;
+                }
+                long recpos = buf.position();
+                if (recover && !plausibleRecord(recpos)) {
+                    buf.position(resyncRecord(recpos));
+                    continue;
+                }
+                if (firstRecordNanos == 0) {
+                    firstRecordNanos = System.nanoTime();
+                    firstRecordMillis = System.currentTimeMillis();
+                }
+                byte tag = buf.get();
+                int eltms = buf.getInt();
+                remaining = buf.getInt() & 0xffffffffL;
+                long recend = buf.position() + remaining;
+                if (recover && recend > buf.limit()) {
+                    // only a heap dump record is accepted truncated, see plausibleRecord
+                    if (recovery.resumePosition(recpos) < 0) {
+                        recovery.record(recpos, recpos, "heap dump record truncated, "
+                                + (recend - buf.limit()) + " of its " + remaining + " bytes are missing");
+                    }
+                    remaining = buf.limit() - buf.position();
+                    recend = buf.limit();
+                }
+
+		Integer count = tagCountMap.get((int)tag);
+		if (count == null) {
+	          tagCountMap.put((int)tag, 1);
                 } else {
                   int iv = count.intValue();
 		  iv++;
@@ -846,27 +2264,58 @@ public class HprofConverter {
 
 		// logger.finer(String.format("processFile pass %d tag %#x ms %d rem %d", pass, tag, eltms, remaining));
 
-		// TODO 1.0.2 tag types HPROF_HEAP_DUMP_SEGMENT HPROF_HEAP_DUMP_END are not handled.  
-		// These tag types appear in JDK11 heapdump.
-                switch (tag) {
-                    case HPROF_UTF8:
-                        process_UTF8();
+                try {
+                    switch (tag) {
+                        case HPROF_UTF8:
+                            process_UTF8();
 			countUtf8++;
-                        break;
-                    case HPROF_LOAD_CLASS:
-                        process_LOAD_CLASS();
+                            break;
+                        case HPROF_LOAD_CLASS:
+                            process_LOAD_CLASS();
 			countLoadClass++;
-                        break;
-                    case HPROF_HEAP_DUMP:
-                        process_HEAP_DUMP();
+                            break;
+                        case HPROF_HEAP_DUMP:
+                        case HPROF_HEAP_DUMP_SEGMENT:
+                            process_HEAP_DUMP();
 			countHeapDump++;
-                        break;
-                    default:
-                        byte[] batmp = new byte[remaining];
-                        buf.get(batmp);
+                            break;
+                        case HPROF_HEAP_DUMP_END:
+                            dumpEnded = true;
+			countOther++;
+                            break;
+                        case HPROF_FRAME:
+                        case HPROF_TRACE:
+                        case HPROF_START_THREAD:
+                        case HPROF_END_THREAD:
+                        case HPROF_CPU_SAMPLES:
+                            // stack trace data is kept from pass 1
+                            if (pass == 1) {
+                                process_stack_trace_record(tag);
+                                buf.position(recend);
+                            } else {
+                                buf.position(buf.position() + remaining);
+                            }
+			countOther++;
+                            break;
+                        default:
+                            buf.position(buf.position() + remaining);
 			countOther++;
+                    }
+                } catch (RuntimeException re) {
+                    if (!recover) {
+                        throw re;
+                    }
+                    // the record length is plausible, so the next record is after it
+                    long resume = Math.min(recend, buf.limit());
+                    if (recovery.resumePosition(recpos) < 0) {
+                        recovery.record(recpos, resume, "bad record type " + tag + ": " + re);
+                    }
+                    buf.position(resume);
                 }
             }
+            if (pass == 1) {
+                beginHeapDumpOutput();
+            }
 	    logger.finer(String.format("processFile pass %d utf8 %d loadClass %d heapDump %d other %d", 
 		pass, countUtf8, countLoadClass, countHeapDump, countOther));
 	    logger.finer(String.format("processFile countMap %s", tagCountMap));
@@ -880,6 +2329,9 @@ public class HprofConverter {
             if (convert && pass == 2) {
                 if (hprof_out != null) {
                     hprof_out.println("HEAP DUMP END");
+                    if (cpuSamples != null) {
+                        printCpuSamples(hprof_out);
+                    }
                     hprof_out.flush();
                     hprof_out.close();
                 }
@@ -887,6 +2339,163 @@ public class HprofConverter {
         }
     }
     
+    private static boolean isRecordTag(byte tag) {
+        return (tag >= HPROF_UTF8 && tag <= HPROF_CONTROL_SETTINGS && tag != 8 && tag != 9)
+                || tag == HPROF_LOCKSTATS_WAIT_TIME || tag == HPROF_LOCKSTATS_HOLD_TIME
+                || tag == HPROF_HEAP_DUMP_SEGMENT || tag == HPROF_HEAP_DUMP_END;
+    }
+
+    private static boolean isSubRecordTag(byte srt) {
+        return (srt >= HPROF_GC_ROOT_JNI_GLOBAL && srt <= HPROF_GC_ROOT_THREAD_OBJ) || srt == HPROF_GC_ROOT_UNKNOWN
+                || srt == HPROF_GC_CLASS_DUMP || isObjectRecord(srt);
+    }
+
+    /**
+     * -recover: returns true if a record header at p is plausible: a known
+     * tag, a heap dump starting with a known sub record, and a length within
+     * the file.  Only a heap dump may extend past the end of the file; that
+     * is where a dump written by a killed JVM stops.
+     */
+    private boolean plausibleRecord(long p) {
+        if (p + RECORD_HEADER_SIZE > buf.limit()) {
+            return false;
+        }
+        byte tag = buf.get(p);
+        if (!isRecordTag(tag)) {
+            return false;
+        }
+        long len = buf.getInt(p + 5) & 0xffffffffL;
+        long end = p + RECORD_HEADER_SIZE + len;
+        if (tag == HPROF_HEAP_DUMP || tag == HPROF_HEAP_DUMP_SEGMENT) {
+            return len == 0 || end - len >= buf.limit() || isSubRecordTag(buf.get(end - len));
+        }
+        return end <= buf.limit();
+    }
+
+    /**
+     * -recover: returns where to continue after the implausible record
+     * header at recpos: the next plausible header that is followed by
+     * another one or by the end of the file, or the end of the file.
+     */
+    private long resyncRecord(long recpos) {
+        long resume = recovery.resumePosition(recpos);
+        if (resume >= 0) {
+            return resume;
+        }
+        try {
+            for (long q = recpos + 1; resume < 0 && q < buf.limit(); q++) {
+                if ((q & (RESYNC_CHUNK - 1)) == 0) {
+                    buf.position(q);
+                }
+                if (!plausibleRecord(q)) {
+                    continue;
+                }
+                byte tag = buf.get(q);
+                long end = q + RECORD_HEADER_SIZE + (buf.getInt(q + 5) & 0xffffffffL);
+                boolean heapDump = tag == HPROF_HEAP_DUMP || tag == HPROF_HEAP_DUMP_SEGMENT;
+                boolean confirmed;
+                if (end >= buf.limit()) {
+                    confirmed = heapDump || end == buf.limit();
+                } else if (!buf.randomAccess() && end - q > RESYNC_CHUNK) {
+                    // looking past it would inflate all of it; a heap dump's first sub record must do
+                    confirmed = heapDump;
+                } else {
+                    confirmed = plausibleRecord(end);
+                }
+                if (confirmed) {
+                    resume = q;
+                }
+            }
+        } catch (RuntimeException re) {
+            // the dump ends within the headers tried
+            resume = -1;
+        }
+        if (resume < 0) {
+            resume = buf.limit();
+        }
+        recovery.record(recpos, resume, "bad record header, tag " + buf.get(recpos));
+        return resume;
+    }
+
+    /**
+     * Returns true if the record at the current position is complete in
+     * the mapped part of the file.  A heap dump record of length 0 is not:
+     * HotSpot writes the segment length once the segment is finished.
+     */
+    private boolean recordAvailable() {
+        long pos = buf.position();
+        if (buf.limit() - pos < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        byte tag = buf.get(pos);
+        long len = buf.getInt(pos + 5) & 0xffffffffL;
+        if (len == 0 && follow && !dumpEnded && (tag == HPROF_HEAP_DUMP || tag == HPROF_HEAP_DUMP_SEGMENT)) {
+            return false;
+        }
+        return buf.limit() - pos - RECORD_HEADER_SIZE >= len;
+    }
+
+    /**
+     * Waits until the record at the current position is complete, remapping
+     * the file as it grows.  If the file stops growing first, the caller
+     * parses what is complete and stops.
+     */
+    private void waitForRecord(File file) throws IOException {
+        while (!recordAvailable()) {
+            if (!waitForGrowth(file)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until the file grows past the mapped part and maps it again,
+     * keeping the current position.  A length patched in place is seen
+     * through the shared mapping, so it is rechecked after every poll.
+     * Returns false once the file has not changed for followIdleSeconds.
+     */
+    private boolean waitForGrowth(File file) throws IOException {
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            if (buf.remap()) {
+                logger.log(Level.FINE, "remapped " + currentPath + " at " + buf.limit() + " bytes");
+                return true;
+            }
+            if (buf.limit() >= HEADER_SIZE && recordAvailable()) {
+                return true;
+            }
+            if (System.currentTimeMillis() - idleSince > followIdleSeconds * 1000L) {
+                return false;
+            }
+            try {
+                Thread.sleep(FOLLOW_POLL_MS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void process_stack_trace_record(byte tag) {
+        switch (tag) {
+            case HPROF_FRAME:
+                process_FRAME();
+                break;
+            case HPROF_TRACE:
+                process_TRACE();
+                break;
+            case HPROF_START_THREAD:
+                process_START_THREAD();
+                break;
+            case HPROF_END_THREAD:
+                process_END_THREAD();
+                break;
+            case HPROF_CPU_SAMPLES:
+                process_CPU_SAMPLES();
+                break;
+        }
+    }
+
     private void printRecordStat() {
         if (logger.isLoggable(Level.INFO)) {
             System.out.println(n_HPROF_GC_CLASS_DUMP + " classes, " 
@@ -896,40 +2505,796 @@ public class HprofConverter {
         }
     }
 
+    /** Forgets everything learned from the previous dump. */
+    private void resetDumpState() {
+        if (nameMap != null) {
+            nameMap.free();
+            cnDic.free();
+            charArrayMap.free();
+            charArrayText.free();
+            pendingStrings.free();
+        }
+        nameMap = new StringTable(budget, MemoryBudget.NAMES);
+        cnDic = new LongLongMap(budget, MemoryBudget.CLASS_NAMES);
+        clsDic.clear();
+        charArrayMap = new LongLongMap(budget, MemoryBudget.CHAR_ARRAYS);
+        charArrayText = new StringTable(budget, MemoryBudget.CHAR_ARRAYS);
+        pendingStrings = new LongLongMap(budget, MemoryBudget.PENDING_STRINGS);
+        if (buf != null) {
+            buf.close();
+        }
+        buf = null;
+        n_HPROF_GC_CLASS_DUMP = 0;
+        n_HPROF_GC_INSTANCE_DUMP = 0;
+        n_HPROF_GC_OBJ_ARRAY_DUMP = 0;
+        n_HPROF_GC_PRIM_ARRAY_DUMP = 0;
+        textArrays = 0;
+        java.util.Arrays.fill(primArrayCount, 0);
+        java.util.Arrays.fill(primArrayBytes, 0);
+        traces = new StackTraces();
+        statics = new StaticValues();
+        layout = null;
+        minObjectId = -1;
+        maxObjectId = 0;
+        objectIdBits = 0;
+        objectIdSamples = 0;
+        heapDumpBegun = false;
+        cpuSamples = null;
+        recovery = new Recovery();
+    }
+
+    /**
+     * Formats a duration for the "took" lines.  The DecimalFormat is made
+     * only when one is printed: loading the locale data for it takes a good
+     * part of the time to the first record.
+     */
+    private static String seconds(long millis) {
+        return new DecimalFormat("#,##0.000").format(millis / 1000.0);
+    }
+
     public void processFile(String path) {
-        DecimalFormat format = new DecimalFormat("#,##0.000");
         long t0 = 0;
         long t1 = 0;
+        resetDumpState();
+        if (sampleFraction > 0) {
+            if (isCompressed(path)) {
+                // every block up to a window would be decompressed and kept, so nothing is saved
+                logger.log(Level.SEVERE, "ERROR: -sample needs random access, which " + path
+                        + " is not.  Decompress the dump to sample it, or use -histogram.");
+                return;
+            }
+            t0 = System.currentTimeMillis();
+            sampler = new HeapSampler(sampleFraction);
+            processFile(path, 1);
+            sampler.print();
+            sampler = null;
+            if (recovery.errorCount() > 0) {
+                recovery.print();
+            }
+            t1 = System.currentTimeMillis();
+            if (logger.isLoggable(Level.INFO)) {
+                System.out.println("sampling took " + seconds(t1 - t0) + " s.");
+            }
+            return;
+        }
+        idSorter = diffObjects ? new ExternalIdSorter() : null;
+        collectionStats = collections ? new CollectionStats() : null;
+        classLoaders = classLoaderReport ? new ClassLoaders() : null;
+        if (duplicates) {
+            // the tables are created after pass 1, which counts the arrays
+            stringValueIds = new LongIntHashMap();
+            stringValueOffset = -1;
+        }
+        boolean queryIndex = query != null && query.dereferences();
+        if (queryIndex && isCompressed(path)) {
+            logger.log(Level.WARNING, "-query: following references needs random access, which "
+                    + path + " is not; references are treated as unresolved.  Decompress the dump to follow them.");
+            queryIndex = false;
+        }
+        boolean graph = !pathTargets.isEmpty() || threadRetained || classLoaderReport;
+        objectIndex = !graph && !queryIndex ? null : new ObjectIndex();
+        heapGraph = !graph ? null : new HeapGraph(objectIndex);
         t0 = System.currentTimeMillis();
+        int layoutHits = layoutCache != null ? layoutCache.hits() : 0;
         processFile(path, 1);
+        if (layoutCache != null) {
+            logger.log(Level.INFO, (layoutCache.hits() - layoutHits) + " of " + n_HPROF_GC_CLASS_DUMP
+                    + " class layouts were found in " + layoutCacheFile);
+        }
+        if (duplicates) {
+            // each filter is sized for the arrays it will see: String values, and the other char[] and byte[]
+            int stringValues = stringValueIds.size();
+            duplicateStrings = new DuplicateTable(dupTableSize, stringValues, budget);
+            duplicateArrays = new DuplicateTable(dupTableSize, Math.max(0, textArrays - stringValues), budget);
+        }
+        if (objectIndex != null) {
+            freezeObjectIndex();
+        }
+        if (heapGraph != null) {
+            heapGraph.freeze();
+            markReferenceClasses();
+        }
+        if (!projections.isEmpty() || query != null) {
+            rowOut = new PrintWriter(System.out);
+        }
+        if (!projections.isEmpty()) {
+            bindProjections();
+        }
+        if (query != null) {
+            bindQuery();
+        }
+        walkInstanceFields = convert || heapGraph != null || collectionStats != null || dumpString;
         t1 = System.currentTimeMillis();
         
         if (logger.isLoggable(Level.INFO)) {
-            System.out.println("pass 1 took " + format.format(((double)(t1-t0))/1000.0) + " s.");
+            System.out.println("pass 1 took " + seconds(t1 - t0) + " s.");
         }
         printRecordStat();
+        if (!legacyLayout && logger.isLoggable(Level.INFO)) {
+            ObjectLayout ol = objectLayout();
+            System.out.println("object layout " + ol.description + ", " + ol.alignment + " byte alignment"
+                    + (layoutModel.equals("auto") ? " (guessed)" : ""));
+        }
         
         t0 = System.currentTimeMillis();
         processFile(path, 2);
+        if (rowOut != null) {
+            rowOut.flush();
+            rowOut = null;
+            projectionSlots = null;
+            bindings = null;
+        }
+        if (querySlots != null) {
+            logger.log(Level.INFO, "query selected " + queryMatches + " of " + queryTested + " instances");
+            querySlots = null;
+            queryBindings = null;
+            queryContext = null;
+        }
         
         if (dumpString) {
-          for (Iterator ite = pendingStrings.keySet().iterator(); ite.hasNext(); ) {
-            Object k = ite.next();
-            Id caid = (Id)pendingStrings.get(k);
-            char[] ca = (char[])charArrayMap.get(caid);
-            if (ca != null) {
-              String ts = new String(ca);
-              System.out.println("S: " + k + " " + ts);
+          long[] keys = pendingStrings.keys();
+          Arrays.sort(keys);
+          for (long k : keys) {
+            long caid = pendingStrings.get(k);
+            String ts = charArrayString(caid);
+            if (ts != null) {
+              System.out.println("S: " + Long.toHexString(k) + " " + ts);
               ts = null;
             } else {
-              logger.log(Level.SEVERE, "dumpString could not find char[] " + caid + " for String " + k);
+              logger.log(Level.SEVERE, "dumpString could not find char[] " + Long.toHexString(caid) + " for String " + Long.toHexString(k));
             }
           }
         }
         t1 = System.currentTimeMillis();
         if (logger.isLoggable(Level.INFO)) {
-            System.out.println("pass 2 took " + format.format(((double)(t1-t0))/1000.0) + " s.");
+            System.out.println("pass 2 took " + seconds(t1 - t0) + " s.");
+        }
+
+        if (histogram && !diff) {
+            printHistogram(histogramSnapshot());
+        }
+
+        if (dumpStatics) {
+            printStatics();
+        }
+
+        if (threadStacks) {
+            printThreadStacks();
+        }
+
+        if (collectionStats != null) {
+            collectionStats.print(referenceSize(), objArraySize(0));
+            collectionStats = null;
+        }
+
+        if (duplicates) {
+            printDuplicates();
+            duplicateStrings.release();
+            duplicateArrays.release();
+            duplicateStrings = null;
+            duplicateArrays = null;
+            stringValueIds = null;
+        }
+
+        if (threadRetained) {
+            t0 = System.currentTimeMillis();
+            printThreadRetained();
+            t1 = System.currentTimeMillis();
+            if (logger.isLoggable(Level.INFO)) {
+                System.out.println("thread marking took " + seconds(t1 - t0) + " s.");
+            }
+        }
+
+        if (classLoaders != null) {
+            t0 = System.currentTimeMillis();
+            printClassLoaders();
+            classLoaders = null;
+            t1 = System.currentTimeMillis();
+            if (logger.isLoggable(Level.INFO)) {
+                System.out.println("class loader report took " + seconds(t1 - t0) + " s.");
+            }
+        }
+
+        if (heapGraph != null && !pathTargets.isEmpty()) {
+            t0 = System.currentTimeMillis();
+            printPathsToRoot();
+            t1 = System.currentTimeMillis();
+            if (logger.isLoggable(Level.INFO)) {
+                System.out.println("path search took " + seconds(t1 - t0) + " s.");
+            }
+        }
+        heapGraph = null;
+        objectIndex = null;
+        if (recovery.errorCount() > 0) {
+            recovery.print();
+        }
+        if (budget.isLimited()) {
+            budget.print();
+        }
+    }
+
+    private void printDuplicates() {
+        System.out.println("Duplicate Strings (String and value array per copy), by wasted bytes");
+        printDuplicateTable(duplicateStrings, true);
+        System.out.println("Duplicate char[] and byte[] contents not used by Strings, by wasted bytes");
+        printDuplicateTable(duplicateArrays, false);
+    }
+
+    private void printDuplicateTable(DuplicateTable t, boolean text) {
+        System.out.println("    copies  bytes/copy  wasted bytes  content");
+        System.out.println("--------------------------------------------------");
+        List<Integer> ranked = t.ranked();
+        for (int i = 0; i < ranked.size() && i < DUP_REPORT_LIMIT; i++) {
+            int slot = ranked.get(i);
+            String type = primitiveTypeName(t.type(slot)) + "[" + t.length(slot) + "]";
+            String preview = t.preview(slot);
+            if (preview == null) {
+                preview = previewContent(t.type(slot), t.position(slot), t.length(slot), text || t.type(slot) == 5);
+            }
+            System.out.printf("%10d %11d %13d  %s %s\n", t.count(slot), t.size(slot), t.wasted(slot), type, preview);
+        }
+        System.out.printf("%d duplicated contents, %d bytes wasted in total", ranked.size(), t.totalWasted());
+        if (t.untracked() > 0) {
+            System.out.printf(" (table full: %d further duplicates not tracked, raise -dup_table_size)", t.untracked());
+        }
+        System.out.println("");
+    }
+
+    /** Returns the start of an array content, as text or as hex bytes. */
+    private String previewContent(byte type, long pos, int length, boolean text) {
+        final int limit = 40;
+        StringBuilder sb = new StringBuilder();
+        int n = Math.min(length, limit);
+        if (text) {
+            sb.append('"');
+            for (int i = 0; i < n; i++) {
+                char c = type == 5 ? buf.getChar(pos + i * 2) : (char) (buf.get(pos + i) & 0xff);
+                sb.append(c < 0x20 || (c >= 0x7f && c < 0xa0) ? '.' : c);
+            }
+            sb.append('"');
+        } else {
+            for (int i = 0; i < n; i++) {
+                sb.append(String.format("%02x", buf.get(pos + i) & 0xff));
+            }
+        }
+        if (length > limit) {
+            sb.append("...");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collects the histogram counters of the current dump by class name.
+     * Classes of the same name defined by different loaders are merged.
+     */
+    private Map<String,long[]> histogramSnapshot() {
+        Map<String,long[]> histo = new HashMap<>();
+        for (Map.Entry<Id,ClassInfo> e : clsDic.entrySet()) {
+            ClassInfo ci = e.getValue();
+            if (ci.count > 0) {
+                addHistogramEntry(histo, classLabel(e.getKey()), ci.count, ci.bytes);
+            }
+        }
+        for (int t = 4; t <= 11; t++) {
+            if (primArrayCount[t] > 0) {
+                addHistogramEntry(histo, primitiveTypeName(t) + "[]", primArrayCount[t], primArrayBytes[t]);
+            }
+        }
+        return histo;
+    }
+
+    /** Name of a class for reports; one whose name was lost in a corrupt dump shows its id. */
+    private String classLabel(Id cid) {
+        String cname = getNameForClassId(cid);
+        return cname != null ? cname : "<class " + cid.toHexString() + ">";
+    }
+
+    private static void addHistogramEntry(Map<String,long[]> histo, String name, long count, long bytes) {
+        long[] v = histo.get(name);
+        if (v == null) {
+            histo.put(name, new long[] { count, bytes });
+        } else {
+            v[0] += count;
+            v[1] += bytes;
+        }
+    }
+
+    /** Returns the names of histo ordered by the absolute value of column col, largest first. */
+    private static List<String> sortedByColumn(final Map<String,long[]> histo, final int col) {
+        List<String> names = new ArrayList<>(histo.keySet());
+        java.util.Collections.sort(names, new java.util.Comparator<String>() {
+            public int compare(String a, String b) {
+                long va = Math.abs(histo.get(a)[col]);
+                long vb = Math.abs(histo.get(b)[col]);
+                if (va != vb) {
+                    return va > vb ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        return names;
+    }
+
+    private void printHistogram(Map<String,long[]> histo) {
+        long count = 0, bytes = 0;
+        System.out.println(" num     #instances         #bytes  class name");
+        System.out.println("----------------------------------------------");
+        int num = 0;
+        for (String name : sortedByColumn(histo, 1)) {
+            long[] v = histo.get(name);
+            System.out.printf("%4d: %14d %14d  %s\n", ++num, v[0], v[1], name);
+            count += v[0];
+            bytes += v[1];
         }
+        System.out.printf("Total %14d %14d\n", count, bytes);
+    }
+
+    /**
+     * Compares two dumps.  Each dump is scanned once as for -histogram; with
+     * -diff_objects the object ids of both dumps are sorted externally and
+     * merged, so neither heap has to be held in memory.
+     */
+    private void processDiff() {
+        if (hprof_files.size() != 2) {
+            logger.severe("-diff requires exactly two hprof files.");
+            return;
+        }
+        String a = hprof_files.get(0);
+        String b = hprof_files.get(1);
+        for (String path : hprof_files) {
+            if (!new File(path).exists()) {
+                logger.log(Level.SEVERE, "file " + path + " was not found.");
+                return;
+            }
+        }
+        histogram = true;
+        processFile(a);
+        Map<String,long[]> ha = histogramSnapshot();
+        ExternalIdSorter sa = idSorter;
+        processFile(b);
+        Map<String,long[]> hb = histogramSnapshot();
+        ExternalIdSorter sb = idSorter;
+        idSorter = null;
+
+        Map<String,long[]> delta = new HashMap<>();
+        for (Map.Entry<String,long[]> e : ha.entrySet()) {
+            addHistogramEntry(delta, e.getKey(), -e.getValue()[0], -e.getValue()[1]);
+        }
+        for (Map.Entry<String,long[]> e : hb.entrySet()) {
+            addHistogramEntry(delta, e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        System.out.println("Heap diff " + a + " -> " + b);
+        System.out.println("  #instances         #bytes  class name");
+        System.out.println("---------------------------------------");
+        long count = 0, bytes = 0;
+        for (String name : sortedByColumn(delta, 1)) {
+            long[] v = delta.get(name);
+            if (v[0] == 0 && v[1] == 0) {
+                continue;
+            }
+            System.out.printf("%+12d %+14d  %s\n", v[0], v[1], name);
+            count += v[0];
+            bytes += v[1];
+        }
+        System.out.printf("%+12d %+14d  Total\n", count, bytes);
+
+        if (sa != null && sb != null) {
+            try {
+                printObjectDiff(sa.finish(), sb.finish());
+            } catch (IOException ioe) {
+                logger.log(Level.SEVERE, "object diff failed", ioe);
+            } finally {
+                sa.close();
+                sb.close();
+            }
+        }
+    }
+
+    private void printObjectDiff(ExternalIdSorter.Cursor ca, ExternalIdSorter.Cursor cb) throws IOException {
+        int n = diffClassNames.size();
+        long[] newCount = new long[n], newBytes = new long[n];
+        long[] goneCount = new long[n], goneBytes = new long[n];
+        boolean hasA = ca.next();
+        boolean hasB = cb.next();
+        while (hasA || hasB) {
+            int c = !hasA ? 1 : !hasB ? -1 : Long.compareUnsigned(ca.id(), cb.id());
+            if (c < 0) {
+                goneCount[ca.classKey()]++;
+                goneBytes[ca.classKey()] += ca.size();
+                hasA = ca.next();
+            } else if (c > 0) {
+                newCount[cb.classKey()]++;
+                newBytes[cb.classKey()] += cb.size();
+                hasB = cb.next();
+            } else {
+                if (ca.classKey() != cb.classKey()) {
+                    // the address was reused by an object of another class
+                    goneCount[ca.classKey()]++;
+                    goneBytes[ca.classKey()] += ca.size();
+                    newCount[cb.classKey()]++;
+                    newBytes[cb.classKey()] += cb.size();
+                }
+                hasA = ca.next();
+                hasB = cb.next();
+            }
+        }
+        Map<String,long[]> byClass = new HashMap<>();
+        for (int k = 0; k < n; k++) {
+            if (newCount[k] != 0 || goneCount[k] != 0) {
+                byClass.put(diffClassNames.get(k), new long[] { newCount[k], newBytes[k] - goneBytes[k], newBytes[k], goneCount[k], goneBytes[k] });
+            }
+        }
+        System.out.println("Objects new and gone by id");
+        System.out.println("        #new      #new bytes       #gone     #gone bytes  class name");
+        System.out.println("--------------------------------------------------------------------");
+        long[] total = new long[5];
+        for (String name : sortedByColumn(byClass, 1)) {
+            long[] v = byClass.get(name);
+            System.out.printf("%12d %15d %11d %15d  %s\n", v[0], v[2], v[3], v[4], name);
+            for (int i = 0; i < v.length; i++) {
+                total[i] += v[i];
+            }
+        }
+        System.out.printf("%12d %15d %11d %15d  Total\n", total[0], total[2], total[3], total[4]);
+    }
+
+    /**
+     * Marks classes whose instances hold their referent weakly, and the
+     * Reference class declaring it, so that -exclude_weak can skip that
+     * field, and not a field of a subclass with the same name.
+     */
+    private void markReferenceClasses() {
+        for (Map.Entry<Id,ClassInfo> e : clsDic.entrySet()) {
+            if (isClassName(getNameForClassId(e.getKey()), "java.lang.ref.Reference")) {
+                e.getValue().referenceClass = true;
+            }
+            Id cid = e.getKey();
+            while (cid.getValue() != 0) {
+                String cname = getNameForClassId(cid);
+                if (isClassName(cname, "java.lang.ref.WeakReference")
+                        || isClassName(cname, "java.lang.ref.SoftReference")
+                        || isClassName(cname, "java.lang.ref.PhantomReference")) {
+                    e.getValue().weakReference = true;
+                    break;
+                }
+                ClassInfo ci = clsDic.get(cid);
+                if (ci == null) {
+                    break;
+                }
+                cid = new Id(ci.superid);
+            }
+        }
+    }
+
+    /**
+     * Compares a class name as found in the dump, which may use either '/'
+     * or '.' as package separator, with a dotted class name.
+     */
+    static boolean isClassName(String name, String dotted) {
+        if (name == null || name.length() != dotted.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != dotted.charAt(i) && !(c == '/' && dotted.charAt(i) == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void freezeObjectIndex() {
+        objectIndex.setArraySizes(new ObjectIndex.ArraySizes() {
+            public long arraySize(int type, int length) {
+                return type == 2 ? objArraySize(length) : primArraySize((byte) type, length);
+            }
+        });
+        for (int k = 0; k < objectIndex.classCount(); k++) {
+            objectIndex.setClassSize(k, instanceSize(clsDic.get(new Id(objectIndex.classId(k)))));
+        }
+        objectIndex.freeze();
+        logger.log(Level.INFO, "object index: " + objectIndex.size() + " objects, " + objectIndex.classCount() + " classes");
+    }
+
+    private void printStatics() {
+        System.out.println("Static fields and constant pool values");
+        for (int slot = 0; slot < statics.classCount(); slot++) {
+            int ns = statics.staticCount(slot);
+            int nc = statics.constantCount(slot);
+            if (ns == 0 && nc == 0) {
+                continue;
+            }
+            long cid = statics.classId(slot);
+            System.out.println("class " + getNameForClassId(new Id(cid)) + " (" + Long.toHexString(cid) + ")");
+            for (int i = statics.firstConstant(slot), end = i + nc; i < end; i++) {
+                byte type = statics.constantType(i);
+                System.out.println("\tconstant pool [" + statics.constantIndex(i) + "] "
+                        + (type == 2 ? "object" : primitiveTypeName(type)) + " = " + StaticValues.format(type, statics.constantValue(i)));
+            }
+            for (int i = statics.firstStatic(slot), end = i + ns; i < end; i++) {
+                byte type = statics.staticType(i);
+                System.out.println("\tstatic " + (type == 2 ? "object" : primitiveTypeName(type)) + " "
+                        + nameOrEmpty(new Id(statics.staticName(i))) + " = " + StaticValues.format(type, statics.staticValue(i)));
+            }
+        }
+    }
+
+    private void printThreadRetained() {
+        ThreadRetention tr = new ThreadRetention(heapGraph, Runtime.getRuntime().availableProcessors());
+        List<ThreadRetention.Result> results = tr.compute();
+        System.out.println("Heap kept reachable by thread stacks (excluding objects reachable from global roots)");
+        System.out.println("thread     roots     objects        bytes   excl. objects  excl. bytes  name");
+        System.out.println("--------------------------------------------------------------------------------");
+        for (ThreadRetention.Result r : results) {
+            String name = "";
+            if (traces.hasThread(r.thread)) {
+                name = nameOrEmpty(new Id(traces.threadName(r.thread)));
+                if (name.length() == 0) {
+                    name = "obj=" + Long.toHexString(traces.threadObj(r.thread));
+                }
+            }
+            System.out.printf("%6x %9d %11d %12d %15d %12d  %s\n", r.thread, r.roots, r.objects, r.bytes,
+                    r.exclusiveObjects, r.exclusiveBytes, name);
+        }
+    }
+
+    private void printPathsToRoot() {
+        if (excludeWeak) {
+            System.out.println("(referents of weak, soft and phantom references are ignored)");
+        }
+        for (Long target : pathTargets) {
+            String tid = Long.toHexString(target);
+            int ord = heapGraph.ordinal(target);
+            if (ord < 0) {
+                System.out.println("Object " + tid + " is not in the heap dump.");
+                continue;
+            }
+            int[] path = heapGraph.shortestPathToRoot(ord);
+            if (path == null) {
+                System.out.println("No path to GC root found for " + tid + ".");
+                continue;
+            }
+            System.out.println("Path to GC root for " + tid + " (" + (path.length - 1) + " references):");
+            printGraphPath(path);
+        }
+    }
+
+    /** Prints a reference chain of the heap graph starting at a root. */
+    private void printGraphPath(int[] path) {
+        int ri = heapGraph.findRoot(path[0]);
+        byte kind = heapGraph.rootKind(ri);
+        String rs = "ROOT " + Long.toHexString(heapGraph.id(path[0])) + " (kind=" + rootKindName(kind);
+        if (kind == HPROF_GC_ROOT_THREAD_OBJ || kind == HPROF_GC_ROOT_JAVA_FRAME
+                || kind == HPROF_GC_ROOT_JNI_LOCAL || kind == HPROF_GC_ROOT_NATIVE_STACK
+                || kind == HPROF_GC_ROOT_THREAD_BLOCK) {
+            rs += ", thread=" + Integer.toHexString(heapGraph.rootThread(ri));
+        }
+        System.out.println(rs + ")");
+        for (int i = 0; i < path.length; i++) {
+            String via = "";
+            if (i > 0 && objectIndex.classOrdOf(path[i - 1]) == ObjectIndex.CLASS_OBJECT) {
+                int sf = statics.findReference(heapGraph.id(path[i - 1]), heapGraph.id(path[i]));
+                if (sf >= 0) {
+                    via = "\t(static " + nameOrEmpty(new Id(statics.staticName(sf))) + ")";
+                }
+            }
+            System.out.println("\t" + Long.toHexString(heapGraph.id(path[i])) + "\t" + describeGraphObject(path[i]) + via);
+        }
+    }
+
+    /** Returns the chain from a root to ord in a parentsFromRoots() result. */
+    private static int[] pathFromParents(int[] parent, int ord) {
+        HeapGraph.IntList chain = new HeapGraph.IntList();
+        for (int o = ord; o >= 0; o = parent[o]) {
+            chain.add(o);
+        }
+        int[] path = new int[chain.size];
+        for (int p = 0; p < chain.size; p++) {
+            path[p] = chain.data[chain.size - 1 - p];
+        }
+        return path;
+    }
+
+    private void printClassLoaders() {
+        classLoaders.group();
+        final int n = classLoaders.loaderCount();
+        // number of loaders defining each class name
+        Map<String,Integer> definers = new HashMap<>();
+        String[][] names = new String[n][];
+        for (int i = 0; i < n; i++) {
+            names[i] = new String[classLoaders.classCount(i)];
+            for (int j = 0; j < names[i].length; j++) {
+                String name = classLabel(new Id(classLoaders.classId(i, j)));
+                names[i][j] = name;
+                Integer c = definers.get(name);
+                definers.put(name, c == null ? 1 : c + 1);
+            }
+        }
+        final int[] dups = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (String name : names[i]) {
+                if (definers.get(name) > 1) {
+                    dups[i]++;
+                }
+            }
+        }
+        // one search from the roots that are not loaders finds what keeps most loaders alive;
+        // a second one from all roots, only if needed, those held through a loader that is a root
+        BitSet loaderOrds = new BitSet(heapGraph.size());
+        for (int i = 0; i < n; i++) {
+            int ord = heapGraph.ordinal(classLoaders.loaderId(i));
+            if (ord >= 0) {
+                loaderOrds.set(ord);
+            }
+        }
+        int[] parent = heapGraph.parentsFromRoots(loaderOrds);
+        int[] loaderRootParent = null;
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Integer.compare(dups[b], dups[a]);
+                if (c == 0) {
+                    c = Integer.compare(classLoaders.classCount(b), classLoaders.classCount(a));
+                }
+                return c != 0 ? c : Long.compareUnsigned(classLoaders.loaderId(a), classLoaders.loaderId(b));
+            }
+        });
+        System.out.println("Class loaders by classes whose name another loader also defines ("
+                + n + " loaders, " + classLoaders.totalClasses() + " classes)");
+        System.out.println("          loader     classes  dup. classes  loader class");
+        System.out.println("------------------------------------------------------------");
+        for (int k = 0; k < n && k < DUP_REPORT_LIMIT; k++) {
+            int i = order[k];
+            System.out.printf("%16s %11d %13d  %s\n", loaderLabel(i), classLoaders.classCount(i), dups[i], loaderClassName(i));
+        }
+        if (n > DUP_REPORT_LIMIT) {
+            System.out.println("... " + (n - DUP_REPORT_LIMIT) + " more loaders");
+        }
+
+        System.out.println("What keeps each class loader alive (from roots other than the loaders themselves)");
+        for (int k = 0, shown = 0; k < n && shown < DUP_REPORT_LIMIT; k++) {
+            int i = order[k];
+            if (classLoaders.loaderId(i) == 0) {
+                continue;
+            }
+            shown++;
+            System.out.println("Loader " + loaderLabel(i) + " (" + loaderClassName(i) + "):");
+            int ord = heapGraph.ordinal(classLoaders.loaderId(i));
+            if (ord < 0) {
+                System.out.println("\tnot in the heap dump");
+            } else if (parent[ord] != -2) {
+                printGraphPath(pathFromParents(parent, ord));
+            } else {
+                int ri = heapGraph.findRoot(ord);
+                if (ri >= 0) {
+                    System.out.println("\tonly itself, as a GC root (kind=" + rootKindName(heapGraph.rootKind(ri)) + ")");
+                    continue;
+                }
+                if (loaderRootParent == null) {
+                    loaderRootParent = heapGraph.parentsFromRoots(new BitSet());
+                }
+                if (loaderRootParent[ord] == -2) {
+                    System.out.println("\tnothing reachable from a GC root");
+                } else {
+                    System.out.println("\tonly another class loader that is a GC root:");
+                    printGraphPath(pathFromParents(loaderRootParent, ord));
+                }
+            }
+        }
+
+        List<Map.Entry<String,Integer>> shared = new ArrayList<>();
+        for (Map.Entry<String,Integer> e : definers.entrySet()) {
+            if (e.getValue() > 1) {
+                shared.add(e);
+            }
+        }
+        Collections.sort(shared, new Comparator<Map.Entry<String,Integer>>() {
+            public int compare(Map.Entry<String,Integer> a, Map.Entry<String,Integer> b) {
+                int c = Integer.compare(b.getValue(), a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        System.out.println("Class names defined by more than one loader (" + shared.size() + ")");
+        System.out.println(" loaders  class name");
+        System.out.println("--------------------");
+        for (int k = 0; k < shared.size() && k < DUP_REPORT_LIMIT; k++) {
+            System.out.printf("%8d  %s\n", shared.get(k).getValue(), shared.get(k).getKey());
+        }
+    }
+
+    private String loaderLabel(int i) {
+        long id = classLoaders.loaderId(i);
+        return id == 0 ? "<bootstrap>" : Long.toHexString(id);
+    }
+
+    private String loaderClassName(int i) {
+        long id = classLoaders.loaderId(i);
+        if (id == 0) {
+            return "";
+        }
+        int ord = heapGraph.ordinal(id);
+        return ord < 0 ? "?" : describeGraphObject(ord);
+    }
+
+    private String describeGraphObject(int ord) {
+        int cord = objectIndex.classOrdOf(ord);
+        if (cord == ObjectIndex.CLASS_OBJECT) {
+            return "class " + getNameForClassId(new Id(objectIndex.id(ord)));
+        } else if (ObjectIndex.isPrimArray(cord)) {
+            return primitiveTypeName(ObjectIndex.primArrayType(cord)) + "[]";
+        }
+        return getNameForClassId(new Id(objectIndex.classId(cord)));
+    }
+
+    static int primitiveTypeSize(int type) {
+        switch (type) {
+            case 4: // boolean
+            case 8: // byte
+                return 1;
+            case 5: // char
+            case 9: // short
+                return 2;
+            case 6: // float
+            case 10: // int
+                return 4;
+            case 7: // double
+            case 11: // long
+                return 8;
+        }
+        return 0;
+    }
+
+    static String primitiveTypeName(int type) {
+        switch (type) {
+            case 4: return "boolean";
+            case 5: return "char";
+            case 6: return "float";
+            case 7: return "double";
+            case 8: return "byte";
+            case 9: return "short";
+            case 10: return "int";
+            case 11: return "long";
+        }
+        return "unknown";
+    }
+
+    static String rootKindName(byte kind) {
+        switch (kind) {
+            case HPROF_GC_ROOT_UNKNOWN: return "<unknown>";
+            case HPROF_GC_ROOT_JNI_GLOBAL: return "<JNI global ref>";
+            case HPROF_GC_ROOT_JNI_LOCAL: return "<JNI local ref>";
+            case HPROF_GC_ROOT_JAVA_FRAME: return "<Java stack>";
+            case HPROF_GC_ROOT_NATIVE_STACK: return "<native stack>";
+            case HPROF_GC_ROOT_STICKY_CLASS: return "<system class>";
+            case HPROF_GC_ROOT_THREAD_BLOCK: return "<thread block>";
+            case HPROF_GC_ROOT_MONITOR_USED: return "<busy monitor>";
+            case HPROF_GC_ROOT_THREAD_OBJ: return "<thread>";
+        }
+        return "<" + kind + ">";
     }
 
     public void processFiles() {
@@ -937,15 +3302,22 @@ public class HprofConverter {
           showHelp();
           return;
         }
-        for (Iterator ite = hprof_files.iterator(); ite.hasNext();) {
-            String path = (String) ite.next();
-            File f = new File(path);
-            if (!f.exists()) {
-                logger.log(Level.SEVERE, "file " + path + " was not found.");
-                continue;
-            }
+        if (diff) {
+            processDiff();
+        } else {
+            for (Iterator<String> ite = hprof_files.iterator(); ite.hasNext();) {
+                String path = ite.next();
+                File f = new File(path);
+                if (!f.exists()) {
+                    logger.log(Level.SEVERE, "file " + path + " was not found.");
+                    continue;
+                }
 
-            processFile(path);
+                processFile(path);
+            }
+        }
+        if (layoutCache != null) {
+            layoutCache.save();
         }
     }
 
@@ -953,12 +3325,61 @@ public class HprofConverter {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        mainNanos = System.nanoTime();
+        configureLogging();
         HprofConverter hc = new HprofConverter();
         hc.processArgs(args);
         hc.processFiles();
+        if (hc.timing) {
+            hc.printTiming();
+        }
+    }
+
+    /**
+     * Sets up in code the console logging of the default JDK configuration,
+     * unless java.util.logging.config.file or .class names another one.
+     * The handler of logging.properties would be created by reflection,
+     * which costs startup time and needs configuring in a native image.
+     */
+    private static void configureLogging() {
+        if (System.getProperty("java.util.logging.config.file") != null
+                || System.getProperty("java.util.logging.config.class") != null) {
+            return;
+        }
+        // also keeps the root handlers of the configuration from being created
+        LogManager.getLogManager().reset();
+        Logger root = Logger.getLogger("");
+        root.setLevel(Level.INFO);
+        ConsoleHandler ch = new ConsoleHandler();
+        ch.setLevel(Level.INFO);
+        root.addHandler(ch);
     }
 
-    class Id implements Comparable {
+    /** -timing: prints when the first record was read and when the run ended, to stderr. */
+    private void printTiming() {
+        long end = System.nanoTime();
+        String sinceStart = "";
+        if (firstRecordNanos != 0) {
+            try {
+                // looked up only now so that loading the management classes is not measured
+                long vmStart = java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime();
+                sinceStart = (firstRecordMillis - vmStart) + " ms after JVM start, ";
+            } catch (Throwable t) {
+                // a runtime without java.management
+            }
+        }
+        String rate = "";
+        long objects = n_HPROF_GC_CLASS_DUMP + n_HPROF_GC_INSTANCE_DUMP + n_HPROF_GC_OBJ_ARRAY_DUMP + n_HPROF_GC_PRIM_ARRAY_DUMP;
+        if (firstRecordNanos != 0 && end > firstRecordNanos) {
+            // the throughput check of the Makefile reads this figure
+            rate = String.format(", %d heap objects, %.0f objects/s", objects, objects * 1e9 / (end - firstRecordNanos));
+        }
+        System.err.printf("timing: first record %s, done %d ms after main%s\n",
+                firstRecordNanos == 0 ? "not read" : sinceStart + (firstRecordNanos - mainNanos) / 1000000 + " ms after main",
+                (end - mainNanos) / 1000000, rate);
+    }
+
+    class Id implements Comparable<Id> {
 
         long value;
 
@@ -983,8 +3404,7 @@ public class HprofConverter {
             return toHexString();
         }
 
-        public int compareTo(Object a) {
-          Id other = (Id)a;
+        public int compareTo(Id other) {
           if (value < other.value) return -1;
           if (value == other.value) return 0;
           return 1;
@@ -1020,7 +3440,7 @@ public class HprofConverter {
 
     // 1.0.2 record types
     public static final byte HPROF_HEAP_DUMP_SEGMENT       = 0x1C;
-    public static final byte HPROF_HEAP_DUMP_END           = 0x2C
+    public static final byte HPROF_HEAP_DUMP_END           = 0x2C;
 // HPROF_GC_ROOT_UNKNOWN       = 0xff
     public static final byte HPROF_GC_ROOT_UNKNOWN = -1;
     public static final byte HPROF_GC_ROOT_JNI_GLOBAL = 0x01;
@@ -1100,53 +3520,3 @@ public class HprofConverter {
             + "\n" 
             + "--------\n";
 }
-
-class FieldSpec {
-
-    byte type;
-    String name;
-
-    FieldSpec(byte ftype, String fname) {
-        type = ftype;
-        name = fname;
-    }
-
-    public String toString() {
-        return "FieldSpec{" + type + ", " + name + "}";
-    }
-}
-
-class ClassInfo {
-
-    long superid;
-    int isize;
-    List<FieldSpec> fieldSpec;
-
-    public ClassInfo(long superid, int isize) {
-        this.superid = superid;
-        this.isize = isize;
-    }
-
-    public void addFieldSpec(FieldSpec fs) {
-        if (fieldSpec == null) {
-            fieldSpec = new ArrayList<>();
-        }
-        fieldSpec.add(fs);
-    }
-
-    public String toString() {
-        //"ClassInfo {${Long.toHexString(superid)}, ${isize}, ${fieldSpec}}"
-        StringBuilder sb = new StringBuilder();
-        sb.append("ClassInfo {" + Long.toHexString(superid) + ", " + isize + ", ");
-        if (fieldSpec != null) {
-            for (Iterator i = fieldSpec.iterator(); i.hasNext();) {
-                sb.append(i.next().toString());
-                if (i.hasNext()) {
-                    sb.append(", ");
-                }
-            }
-        }
-        sb.append("}");
-        return sb.toString();
-    }
-}
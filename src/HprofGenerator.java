@@ -0,0 +1,520 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Writes a synthetic heap dump for the golden output and throughput checks
+ * of the Makefile (make check).
+ *
+ * The same options always give the same bytes.  The dump has a root of
+ * every HPROF_GC_ROOT kind, a class hierarchy three deep whose instance
+ * fields cover every basic type, static fields and a constant pool, arrays
+ * of every primitive type and of objects, strings with repeated values,
+ * hash maps, a weak reference, threads with stack traces, and a class name
+ * defined by two class loaders.  Object ids advance by the object sizes
+ * from a base address typical of the id size, so the layout guessed by
+ * -layout auto is 32-bit for 4 byte ids and without compressed oops for 8.
+ */
+class HprofGenerator {
+    private static final Logger logger = Logger.getLogger(HprofGenerator.class.getName());
+    private static final long TIMESTAMP = 1700000000000L;
+    private static final int SEGMENT_BYTES = 1 << 14;
+
+    private static final String usage = "usage: java HprofGenerator [-id_size 4|8] [-groups n] [-segments] <file>\n"
+            + "    -id_size <n>: Size of object ids, 4 or 8 (default 8).\n"
+            + "    -groups <n>: Number of object groups, about 10 objects each (default 100).\n"
+            + "    -segments: Write HEAP_DUMP_SEGMENT records of about 16 KB and a\n"
+            + "              HEAP_DUMP_END instead of one HEAP_DUMP record.";
+
+    private final int idSize;
+    private final boolean segments;
+    private DataOutputStream out;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final ByteArrayOutputStream heapBytes = new ByteArrayOutputStream();
+    private final DataOutputStream heap = new DataOutputStream(heapBytes);
+
+    private final Map<String,Long> names = new HashMap<>();
+    private long nextName = 0x1000;
+    private long nextObject;
+    /** classes by id, in the order they were defined */
+    private final Map<Long,GenClass> classes = new LinkedHashMap<>();
+    private long stringClass;
+    /** Base.INSTANCES */
+    private long instancesList;
+
+    static class GenClass {
+        final long id;
+        final int serial;
+        final String name;
+        final long superId;
+        final long loader;
+        final String[] fields;
+        final byte[] types;
+
+        GenClass(long id, int serial, String name, long superId, long loader, String[] fields, byte[] types) {
+            this.id = id;
+            this.serial = serial;
+            this.name = name;
+            this.superId = superId;
+            this.loader = loader;
+            this.fields = fields;
+            this.types = types;
+        }
+    }
+
+    HprofGenerator(int idSize, boolean segments) {
+        this.idSize = idSize;
+        this.segments = segments;
+        nextObject = idSize == 4 ? 0x10000000L : 0x7f0000000000L;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int idSize = 8;
+        int groups = 100;
+        boolean segments = false;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-id_size") && i + 1 < args.length) {
+                idSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-groups") && i + 1 < args.length) {
+                groups = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-segments")) {
+                segments = true;
+            } else if (!args[i].startsWith("-") && path == null) {
+                path = args[i];
+            } else {
+                System.out.println(usage);
+                System.exit(1);
+            }
+        }
+        if (path == null || (idSize != 4 && idSize != 8) || groups < 1) {
+            System.out.println(usage);
+            System.exit(1);
+        }
+        HprofGenerator g = new HprofGenerator(idSize, segments);
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            g.generate(os, groups);
+        }
+        logger.fine("wrote " + path);
+    }
+
+    void generate(DataOutputStream os, int groups) throws IOException {
+        out = os;
+        out.write((segments ? "JAVA PROFILE 1.0.2" : "JAVA PROFILE 1.0.1").getBytes(StandardCharsets.US_ASCII));
+        out.writeByte(0);
+        out.writeInt(idSize);
+        out.writeLong(TIMESTAMP);
+
+        // classes; the class objects come first in the heap as in a HotSpot dump
+        long loader = 0;
+        long object = defineClass("java/lang/Object", 0, loader, new String[0], new byte[0]);
+        stringClass = defineClass("java/lang/String", object, loader, new String[] { "value", "hash" }, new byte[] { 2, 10 });
+        long thread = defineClass("java/lang/Thread", object, loader,
+                new String[] { "name", "priority", "daemon" }, new byte[] { 2, 10, 4 });
+        long classLoader = defineClass("java/lang/ClassLoader", object, loader, new String[] { "parent" }, new byte[] { 2 });
+        long reference = defineClass("java/lang/ref/Reference", object, loader,
+                new String[] { "referent", "queue", "next" }, new byte[] { 2, 2, 2 });
+        long weakReference = defineClass("java/lang/ref/WeakReference", reference, loader, new String[0], new byte[0]);
+        long abstractMap = defineClass("java/util/AbstractMap", object, loader,
+                new String[] { "keySet", "values" }, new byte[] { 2, 2 });
+        long hashMap = defineClass("java/util/HashMap", abstractMap, loader,
+                new String[] { "table", "size", "modCount", "threshold", "loadFactor" }, new byte[] { 2, 10, 10, 10, 6 });
+        long node = defineClass("java/util/HashMap$Node", object, loader,
+                new String[] { "hash", "key", "value", "next" }, new byte[] { 10, 2, 2, 2 });
+        long arrayList = defineClass("java/util/ArrayList", object, loader,
+                new String[] { "elementData", "size" }, new byte[] { 2, 10 });
+        long objectArray = defineClass("[Ljava/lang/Object;", object, loader, new String[0], new byte[0]);
+        long nodeArray = defineClass("[Ljava/util/HashMap$Node;", object, loader, new String[0], new byte[0]);
+        long stringArray = defineClass("[Ljava/lang/String;", object, loader, new String[0], new byte[0]);
+
+        long appLoader = allocate(16);
+        long pluginLoader = allocate(16);
+        long base = defineClass("com/example/Base", object, appLoader,
+                new String[] { "id", "flags" }, new byte[] { 11, 10 });
+        long middle = defineClass("com/example/Middle", base, appLoader,
+                new String[] { "name", "ratio", "kind" }, new byte[] { 2, 7, 9 });
+        String[] leafFields = { "next", "data", "attrs", "weight", "code", "tag", "active" };
+        byte[] leafTypes = { 2, 2, 2, 6, 5, 8, 4 };
+        long leaf = defineClass("com/example/Leaf", middle, appLoader, leafFields, leafTypes);
+        long pluginLeaf = defineClass("com/example/Leaf", middle, pluginLoader, leafFields, leafTypes);
+
+        instancesList = allocate(24);
+        long instancesData = allocate(16 + 10 * idSize);
+        for (GenClass c : classes.values()) {
+            writeClassDump(c);
+        }
+
+        // threads and their stacks
+        long mainThread = allocate(24);
+        long workerThread = allocate(24);
+        long frameMain = 0x9001;
+        long frameRun = 0x9002;
+        long frameWork = 0x9003;
+        writeFrame(frameMain, "main", "([Ljava/lang/String;)V", "Main.java", classes.get(leaf).serial, 42);
+        writeFrame(frameRun, "run", "()V", "Main.java", classes.get(leaf).serial, 17);
+        writeFrame(frameWork, "work", "(I)V", "Worker.java", classes.get(middle).serial, -1);
+        writeTrace(1, 1, frameRun, frameMain);
+        writeTrace(2, 2, frameWork);
+        writeStartThread(1, mainThread, 1, "main", "main", "system");
+        writeStartThread(2, workerThread, 2, "worker-1", "main", "system");
+
+        long mainName = writeString("main");
+        long workerName = writeString("worker-1");
+        writeInstance(mainThread, thread, 1, mainName, 5, 0);
+        writeInstance(workerThread, thread, 2, workerName, 5, 1);
+        writeInstance(appLoader, classLoader, 0, 0);
+        writeInstance(pluginLoader, classLoader, 0, appLoader);
+
+        // the object groups: a chain of Leafs, each with a name, an array and a map
+        long[] kept = new long[10];
+        long first = 0;
+        long previous = 0;
+        long monitor = 0;
+        for (int i = 0; i < groups; i++) {
+            long id = allocate(64);
+            if (first == 0) {
+                first = id;
+            }
+            long name = writeString("item-" + (i % 31));
+            long data = writePrimArray((byte) (4 + i % 8), i % 13, i);
+            long attrs = writeHashMap(hashMap, node, nodeArray, i % 3 == 0 ? 1 + i % 5 : 0, name, previous);
+            if (monitor == 0) {
+                monitor = attrs;
+            }
+            writeInstance(id, i % 50 == 49 ? pluginLeaf : leaf, i % 4 == 0 ? 1 : 0,
+                    previous, data, attrs, Float.floatToRawIntBits(i * 0.5f), 'a' + i % 26, i - 128, i % 2,
+                    name, Double.doubleToRawLongBits(i / 4.0), i % 3,
+                    i, i & 0xff);
+            kept[i % kept.length] = id;
+            if (i % 10 == 9) {
+                writeObjArray(allocate(16 + kept.length * idSize), i % 20 == 9 ? objectArray : stringArray, kept);
+            }
+            previous = id;
+        }
+        writeObjArray(instancesData, objectArray, kept);
+        writeInstance(instancesList, arrayList, 0, instancesData, Math.min(groups, kept.length));
+
+        long weak = allocate(24);
+        writeInstance(weak, weakReference, 0, previous, 0, 0);
+        long unknown = allocate(16);
+        writeInstance(unknown, object, 0);
+        long nativeBuffer = writePrimArray((byte) 8, 32, 7);
+
+        // a root of every kind
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_UNKNOWN);
+        id(heap, unknown);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_JNI_GLOBAL);
+        id(heap, instancesList);
+        id(heap, 0x5001);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_JNI_LOCAL);
+        id(heap, weak);
+        heap.writeInt(1);
+        heap.writeInt(0);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_JAVA_FRAME);
+        id(heap, previous);
+        heap.writeInt(1);
+        heap.writeInt(1);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_JAVA_FRAME);
+        id(heap, first);
+        heap.writeInt(2);
+        heap.writeInt(0);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_NATIVE_STACK);
+        id(heap, nativeBuffer);
+        heap.writeInt(2);
+        for (GenClass c : classes.values()) {
+            if (c.loader == 0) {
+                heap.writeByte(HprofConverter.HPROF_GC_ROOT_STICKY_CLASS);
+                id(heap, c.id);
+            }
+        }
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_THREAD_BLOCK);
+        id(heap, workerThread);
+        heap.writeInt(2);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_MONITOR_USED);
+        id(heap, monitor);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_THREAD_OBJ);
+        id(heap, mainThread);
+        heap.writeInt(1);
+        heap.writeInt(1);
+        heap.writeByte(HprofConverter.HPROF_GC_ROOT_THREAD_OBJ);
+        id(heap, workerThread);
+        heap.writeInt(2);
+        heap.writeInt(2);
+        flushHeap(true);
+
+        record.writeInt(2);
+        endRecord(HprofConverter.HPROF_END_THREAD);
+    }
+
+    /** Allocates an object id for an object of about size bytes. */
+    private long allocate(int size) {
+        long id = nextObject;
+        nextObject += (size + 7) & ~7;
+        return id;
+    }
+
+    private long defineClass(String name, long superId, long loader, String[] fields, byte[] types) throws IOException {
+        long id = allocate(128);
+        int serial = classes.size() + 1;
+        record.writeInt(serial);
+        id(record, id);
+        record.writeInt(0);
+        id(record, name(name));
+        endRecord(HprofConverter.HPROF_LOAD_CLASS);
+        classes.put(id, new GenClass(id, serial, name, superId, loader, fields, types));
+        return id;
+    }
+
+    private void writeClassDump(GenClass c) throws IOException {
+        long id = c.id;
+        heap.writeByte(HprofConverter.HPROF_GC_CLASS_DUMP);
+        id(heap, id);
+        heap.writeInt(0);
+        id(heap, c.superId);
+        id(heap, c.loader);
+        id(heap, 0); // signers
+        id(heap, 0); // protection domain
+        id(heap, 0);
+        id(heap, 0);
+        heap.writeInt(instanceFieldBytes(id));
+        if (c.name.equals("com/example/Base")) {
+            heap.writeShort(1);
+            heap.writeShort(3);
+            heap.writeByte(10);
+            heap.writeInt(7);
+            heap.writeShort(2);
+            id(heap, name("COUNT"));
+            heap.writeByte(10);
+            heap.writeInt(42);
+            id(heap, name("INSTANCES"));
+            heap.writeByte(2);
+            id(heap, instancesList);
+        } else if (c.name.equals("java/lang/String")) {
+            heap.writeShort(0);
+            heap.writeShort(1);
+            id(heap, name("serialVersionUID"));
+            heap.writeByte(11);
+            heap.writeLong(-6849794470754667710L);
+        } else {
+            heap.writeShort(0);
+            heap.writeShort(0);
+        }
+        heap.writeShort(c.types.length);
+        for (int i = 0; i < c.types.length; i++) {
+            id(heap, name(c.fields[i]));
+            heap.writeByte(c.types[i]);
+        }
+        maybeFlushHeap();
+    }
+
+    private int instanceFieldBytes(long classId) {
+        int n = 0;
+        for (GenClass c = classes.get(classId); c != null; c = classes.get(c.superId)) {
+            for (byte t : c.types) {
+                n += valueSize(t);
+            }
+        }
+        return n;
+    }
+
+    private int valueSize(byte type) {
+        return type == 2 ? idSize : HprofConverter.primitiveTypeSize(type);
+    }
+
+    /** Writes an instance; values are in field order, the class's own fields first, then its supers'. */
+    private void writeInstance(long id, long classId, int trace, long... values) throws IOException {
+        heap.writeByte(HprofConverter.HPROF_GC_INSTANCE_DUMP);
+        id(heap, id);
+        heap.writeInt(trace);
+        id(heap, classId);
+        heap.writeInt(instanceFieldBytes(classId));
+        int v = 0;
+        for (GenClass c = classes.get(classId); c != null; c = classes.get(c.superId)) {
+            for (byte t : c.types) {
+                value(heap, t, values[v++]);
+            }
+        }
+        maybeFlushHeap();
+    }
+
+    private long writeString(String s) throws IOException {
+        long value = allocate(16 + 2 * s.length());
+        heap.writeByte(HprofConverter.HPROF_GC_PRIM_ARRAY_DUMP);
+        id(heap, value);
+        heap.writeInt(0);
+        heap.writeInt(s.length());
+        heap.writeByte(5);
+        heap.writeChars(s);
+        long id = allocate(24);
+        writeInstance(id, stringClass, 0, value, 0);
+        return id;
+    }
+
+    private long writeHashMap(long hashMap, long node, long nodeArray, int entries, long key, long value) throws IOException {
+        long id = allocate(48);
+        long table = 0;
+        if (entries > 0) {
+            table = allocate(16 + 16 * idSize);
+            long[] slots = new long[16];
+            for (int e = 0; e < entries; e++) {
+                long n = allocate(32);
+                writeInstance(n, node, 0, e, key, value, 0);
+                slots[e * 3] = n;
+            }
+            writeObjArray(table, nodeArray, slots);
+        }
+        writeInstance(id, hashMap, 0, table, entries, entries, 12, Float.floatToRawIntBits(0.75f), 0, 0);
+        return id;
+    }
+
+    private long writePrimArray(byte type, int n, int seed) throws IOException {
+        int size = HprofConverter.primitiveTypeSize(type);
+        long id = allocate(16 + size * n);
+        heap.writeByte(HprofConverter.HPROF_GC_PRIM_ARRAY_DUMP);
+        id(heap, id);
+        heap.writeInt(0);
+        heap.writeInt(n);
+        heap.writeByte(type);
+        for (int i = 0; i < n; i++) {
+            long v = seed + i;
+            if (type == 4) {
+                v &= 1;
+            } else if (type == 6) {
+                v = Float.floatToRawIntBits(v / 2.0f);
+            } else if (type == 7) {
+                v = Double.doubleToRawLongBits(v / 2.0);
+            }
+            value(heap, type, v);
+        }
+        maybeFlushHeap();
+        return id;
+    }
+
+    private void writeObjArray(long id, long arrayClass, long[] elements) throws IOException {
+        heap.writeByte(HprofConverter.HPROF_GC_OBJ_ARRAY_DUMP);
+        id(heap, id);
+        heap.writeInt(0);
+        heap.writeInt(elements.length);
+        id(heap, arrayClass);
+        for (long e : elements) {
+            id(heap, e);
+        }
+        maybeFlushHeap();
+    }
+
+    private void writeFrame(long id, String method, String signature, String source, int classSerial, int line) throws IOException {
+        id(record, id);
+        id(record, name(method));
+        id(record, name(signature));
+        id(record, name(source));
+        record.writeInt(classSerial);
+        record.writeInt(line);
+        endRecord(HprofConverter.HPROF_FRAME);
+    }
+
+    private void writeTrace(int serial, int threadSerial, long... frames) throws IOException {
+        record.writeInt(serial);
+        record.writeInt(threadSerial);
+        record.writeInt(frames.length);
+        for (long f : frames) {
+            id(record, f);
+        }
+        endRecord(HprofConverter.HPROF_TRACE);
+    }
+
+    private void writeStartThread(int serial, long threadObject, int trace, String name, String group, String parent) throws IOException {
+        long n = name(name);
+        long g = name(group);
+        long p = name(parent);
+        record.writeInt(serial);
+        id(record, threadObject);
+        record.writeInt(trace);
+        id(record, n);
+        id(record, g);
+        id(record, p);
+        endRecord(HprofConverter.HPROF_START_THREAD);
+    }
+
+    /** Returns the id of a name, writing its UTF8 record the first time. */
+    private long name(String s) throws IOException {
+        Long id = names.get(s);
+        if (id == null) {
+            id = nextName;
+            nextName += 8;
+            names.put(s, id);
+            // a record may be under construction, so this one is written directly
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(HprofConverter.HPROF_UTF8);
+            out.writeInt(0);
+            out.writeInt(idSize + b.length);
+            id(out, id);
+            out.write(b);
+        }
+        return id;
+    }
+
+    private void id(DataOutputStream o, long id) throws IOException {
+        if (idSize == 4) {
+            o.writeInt((int) id);
+        } else {
+            o.writeLong(id);
+        }
+    }
+
+    private void value(DataOutputStream o, byte type, long v) throws IOException {
+        switch (valueSize(type)) {
+            case 1:
+                o.writeByte((int) v);
+                break;
+            case 2:
+                o.writeShort((int) v);
+                break;
+            case 4:
+                if (type == 2) {
+                    id(o, v);
+                } else {
+                    o.writeInt((int) v);
+                }
+                break;
+            default:
+                o.writeLong(v);
+        }
+    }
+
+    private void endRecord(byte tag) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(0);
+        out.writeInt(recordBytes.size());
+        recordBytes.writeTo(out);
+        recordBytes.reset();
+    }
+
+    private void maybeFlushHeap() throws IOException {
+        if (segments && heapBytes.size() >= SEGMENT_BYTES) {
+            flushHeap(false);
+        }
+    }
+
+    private void flushHeap(boolean end) throws IOException {
+        if (heapBytes.size() > 0 || !segments) {
+            out.writeByte(segments ? HprofConverter.HPROF_HEAP_DUMP_SEGMENT : HprofConverter.HPROF_HEAP_DUMP);
+            out.writeInt(0);
+            out.writeInt(heapBytes.size());
+            heapBytes.writeTo(out);
+            heapBytes.reset();
+        }
+        if (end && segments) {
+            out.writeByte(HprofConverter.HPROF_HEAP_DUMP_END);
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to int values, without boxing.
+ * Key 0 cannot be stored; object ids of 0 mean null in hprof anyway.
+ */
+class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private final int missing;
+
+    LongIntHashMap() {
+        this(16, -1);
+    }
+
+    /**
+     * @param expected expected number of entries
+     * @param missing value returned by get() for absent keys
+     */
+    LongIntHashMap(int expected, int missing) {
+        int cap = 16;
+        while (cap < expected * 2) {
+            cap <<= 1;
+        }
+        keys = new long[cap];
+        values = new int[cap];
+        mask = cap - 1;
+        this.missing = missing;
+    }
+
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key) {
+        if (key == 0) {
+            return missing;
+        }
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == 0) {
+                return missing;
+            }
+        }
+    }
+
+    boolean containsKey(long key) {
+        if (key == 0) {
+            return false;
+        }
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == 0) {
+                return false;
+            }
+        }
+    }
+
+    void put(long key, int value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key 0 is reserved");
+        }
+        int i = mix(key) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /** Removes key and returns its value, or the missing value. */
+    int remove(long key) {
+        int i = mix(key) & mask;
+        for (; keys[i] != key; i = (i + 1) & mask) {
+            if (keys[i] == 0) {
+                return missing;
+            }
+        }
+        int v = values[i];
+        // backward shift deletion keeps probe sequences intact
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) {
+                break;
+            }
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        size--;
+        return v;
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    private void rehash() {
+        long[] ok = keys;
+        int[] ov = values;
+        keys = new long[ok.length * 2];
+        values = new int[ok.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < ok.length; i++) {
+            long k = ok[i];
+            if (k != 0) {
+                int j = mix(k) & mask;
+                while (keys[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = k;
+                values[j] = ov[i];
+            }
+        }
+    }
+}
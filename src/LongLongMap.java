@@ -0,0 +1,100 @@
+/**
+ * Open addressing map from long keys to long values kept in a SpillBuffer,
+ * so that it is accounted in the memory budget and spills with it.
+ * Key 0 cannot be stored, and get() returns 0 for absent keys.
+ */
+class LongLongMap {
+    private static final int SLOT = 16;
+    private static final int MAX_CHUNK_BITS = 26;
+
+    private final MemoryBudget budget;
+    private final int table;
+    private SpillBuffer slots;
+    private long mask;
+    private long size;
+
+    LongLongMap(MemoryBudget budget, int table) {
+        this.budget = budget;
+        this.table = table;
+        slots = allocate(16);
+        mask = 15;
+    }
+
+    private SpillBuffer allocate(long cap) {
+        int bits = 63 - Long.numberOfLeadingZeros(cap * SLOT);
+        SpillBuffer b = new SpillBuffer(budget, table, Math.min(bits, MAX_CHUNK_BITS));
+        b.ensureCapacity(cap * SLOT);
+        return b;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long get(long key) {
+        for (long i = LongIntHashMap.mix(key) & mask; ; i = (i + 1) & mask) {
+            long k = slots.getLong(i * SLOT);
+            if (k == key) {
+                return slots.getLong(i * SLOT + 8);
+            }
+            if (k == 0) {
+                return 0;
+            }
+        }
+    }
+
+    void put(long key, long value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key 0");
+        }
+        long i = LongIntHashMap.mix(key) & mask;
+        for (long k; (k = slots.getLong(i * SLOT)) != 0; i = (i + 1) & mask) {
+            if (k == key) {
+                slots.putLong(i * SLOT + 8, value);
+                return;
+            }
+        }
+        slots.putLong(i * SLOT, key);
+        slots.putLong(i * SLOT + 8, value);
+        if (++size * 2 > mask + 1) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        SpillBuffer old = slots;
+        long oldCap = mask + 1;
+        slots = allocate(oldCap * 2);
+        mask = oldCap * 2 - 1;
+        for (long j = 0; j < oldCap; j++) {
+            long k = old.getLong(j * SLOT);
+            if (k != 0) {
+                long i = LongIntHashMap.mix(k) & mask;
+                while (slots.getLong(i * SLOT) != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots.putLong(i * SLOT, k);
+                slots.putLong(i * SLOT + 8, old.getLong(j * SLOT + 8));
+            }
+        }
+        old.free();
+    }
+
+    /** Returns the keys in no particular order. */
+    long[] keys() {
+        long[] keys = new long[(int) size];
+        int n = 0;
+        for (long j = 0; j <= mask; j++) {
+            long k = slots.getLong(j * SLOT);
+            if (k != 0) {
+                keys[n++] = k;
+            }
+        }
+        return keys;
+    }
+
+    void free() {
+        slots.free();
+        size = 0;
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * HprofBuffer over a memory mapped file.  The file is mapped in chunks of
+ * 1 GB, so files larger than 2 GB can be read; remap() maps data appended
+ * since the last mapping.
+ */
+class MappedHprofBuffer extends HprofBuffer {
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private long length;
+    private long limit;
+
+    MappedHprofBuffer(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        map(channel.size());
+        loadWindow(0);
+    }
+
+    private void map(long newLength) throws IOException {
+        int n = (int) ((newLength + CHUNK_MASK) >>> CHUNK_BITS);
+        // the last chunk may have been mapped short; map it again
+        int first = length == 0 ? 0 : (int) ((length - 1) >>> CHUNK_BITS);
+        chunks = Arrays.copyOf(chunks, n);
+        for (int c = first; c < n; c++) {
+            long start = (long) c << CHUNK_BITS;
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, newLength - start));
+        }
+        length = newLength;
+        limit = newLength;
+    }
+
+    @Override
+    boolean remap() throws IOException {
+        long size = channel.size();
+        if (size <= length) {
+            return false;
+        }
+        long pos = position();
+        map(size);
+        loadWindow(pos);
+        return true;
+    }
+
+    @Override
+    protected boolean loadWindow(long pos) {
+        if (pos >= limit || pos < 0) {
+            emptyWindow(pos);
+            return false;
+        }
+        int c = (int) (pos >>> CHUNK_BITS);
+        long start = (long) c << CHUNK_BITS;
+        window = chunks[c].duplicate();
+        window.limit((int) Math.min(window.capacity(), limit - start));
+        window.position((int) (pos - start));
+        windowStart = start;
+        return true;
+    }
+
+    @Override
+    protected byte byteAt(long pos) {
+        if (pos < 0 || pos >= limit) {
+            throw new IndexOutOfBoundsException("position " + pos + " is outside of the dump");
+        }
+        return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+    }
+
+    @Override
+    long limit() {
+        return limit;
+    }
+
+    @Override
+    void limit(long newLimit) {
+        long pos = Math.min(position(), newLimit);
+        limit = newLimit;
+        loadWindow(pos);
+    }
+
+    @Override
+    boolean randomAccess() {
+        return true;
+    }
+
+    @Override
+    void rewind() {
+        loadWindow(0);
+    }
+
+    @Override
+    void close() {
+        try {
+            raf.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.logging.Logger;
+
+/**
+ * Accounting of the heap used by the tables of the converter.
+ *
+ * Every table has a share of the budget.  A SpillBuffer that would take its
+ * table past the share moves to a memory mapped scratch file instead, so a
+ * dump larger than the heap is processed more slowly rather than failing
+ * with OutOfMemoryError.  The class table is only accounted: its entries
+ * are read for every instance and stay on the heap.  The duplicate tables
+ * do not spill either; their filters are made smaller to fit instead.
+ * Without a budget nothing is ever spilled.
+ */
+class MemoryBudget {
+    private static final Logger logger = Logger.getLogger(MemoryBudget.class.getName());
+
+    static final int NAMES = 0;
+    static final int CLASS_NAMES = 1;
+    static final int CLASSES = 2;
+    static final int CHAR_ARRAYS = 3;
+    static final int PENDING_STRINGS = 4;
+    static final int DUPLICATES = 5;
+
+    private static final String[] TABLES = { "names", "class names", "classes", "char arrays", "pending strings",
+            "duplicates" };
+    /** Percent of the budget per table. */
+    private static final int[] SHARES = { 35, 10, 10, 25, 10, 10 };
+
+    private final long limit;
+    private final File scratchDir;
+    private final long[] heap = new long[TABLES.length];
+    private final long[] peak = new long[TABLES.length];
+    private final long[] mapped = new long[TABLES.length];
+    private final int[] spills = new int[TABLES.length];
+    private long spillNanos;
+    private boolean classesWarned;
+
+    /** A budget that never spills. */
+    MemoryBudget() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param limit bytes of heap for all tables
+     * @param scratchDir directory of scratch files, null for java.io.tmpdir
+     */
+    MemoryBudget(long limit, File scratchDir) {
+        this.limit = limit;
+        this.scratchDir = scratchDir;
+    }
+
+    /** Parses a size such as 512m or 2g. */
+    static long parseSize(String s) {
+        long unit = 1;
+        char last = Character.toLowerCase(s.charAt(s.length() - 1));
+        if (last == 'k') {
+            unit = 1L << 10;
+        } else if (last == 'm') {
+            unit = 1L << 20;
+        } else if (last == 'g') {
+            unit = 1L << 30;
+        }
+        String digits = unit == 1 ? s : s.substring(0, s.length() - 1);
+        long v = Long.parseLong(digits);
+        if (v <= 0) {
+            throw new NumberFormatException("size must be positive: " + s);
+        }
+        return v * unit;
+    }
+
+    boolean isLimited() {
+        return limit != Long.MAX_VALUE;
+    }
+
+    long share(int table) {
+        return isLimited() ? limit / 100 * SHARES[table] : Long.MAX_VALUE;
+    }
+
+    /** Takes bytes of heap for a table; returns false, taking nothing, if that exceeds its share. */
+    boolean reserve(int table, long bytes) {
+        if (heap[table] + bytes > share(table)) {
+            return false;
+        }
+        heap[table] += bytes;
+        peak[table] = Math.max(peak[table], heap[table]);
+        return true;
+    }
+
+    void release(int table, long bytes) {
+        heap[table] -= bytes;
+    }
+
+    /** Accounts heap that cannot be spilled; warns once when it exceeds the share. */
+    void charge(int table, long bytes) {
+        heap[table] += bytes;
+        peak[table] = Math.max(peak[table], heap[table]);
+        if (heap[table] > share(table) && !classesWarned) {
+            classesWarned = true;
+            logger.warning("the " + TABLES[table] + " table exceeds its share of the memory budget; it is kept on the heap");
+        }
+    }
+
+    void mapped(int table, long bytes) {
+        mapped[table] += bytes;
+    }
+
+    void spilled(int table, long nanos) {
+        spills[table]++;
+        spillNanos += nanos;
+    }
+
+    /** Creates a scratch file; it is deleted right away where the platform allows. */
+    FileChannel scratchChannel() throws IOException {
+        File f = File.createTempFile("hprofconverter", ".scratch", scratchDir);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        if (!f.delete()) {
+            f.deleteOnExit();
+        }
+        return raf.getChannel();
+    }
+
+    void print() {
+        DecimalFormat mb = new DecimalFormat("#,##0.0");
+        System.out.println("Memory budget " + mb.format(limit / 1048576.0) + " MB");
+        System.out.println(String.format("%-16s %10s %12s %12s %7s", "table", "share MB", "peak heap MB", "scratch MB", "spills"));
+        for (int t = 0; t < TABLES.length; t++) {
+            System.out.println(String.format("%-16s %10s %12s %12s %7d", TABLES[t], mb.format(share(t) / 1048576.0),
+                    mb.format(peak[t] / 1048576.0), mb.format(mapped[t] / 1048576.0), spills[t]));
+        }
+        System.out.println("moving tables to scratch files took " + new DecimalFormat("0.000").format(spillNanos / 1e9) + " s.");
+    }
+}
@@ -0,0 +1,391 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Dense ordinals for the objects of a heap dump.
+ *
+ * Objects are added during the pass 1 heap dump walk with their id, the
+ * dump offset of their record, a class ordinal and their shallow size.
+ * The four columns live in direct buffers outside the Java heap, 24 bytes
+ * per object.  freeze() sorts the rows by id with a parallel LSD radix
+ * sort; the ordinal of an object is then its row, found by interpolation
+ * search on the id column.  Arrays are added with their length, which
+ * freeze() turns into a size through an ArraySizes, so that the object
+ * layout need not be known during pass 1.  The few arrays of 2 GB and
+ * more keep their size in a map by id instead.
+ *
+ * Class ordinals are dense keys handed out by classOrd(classId) for the
+ * class of an instance or object array.  Class objects and primitive arrays
+ * use the negative codes CLASS_OBJECT and primArrayClassOrd(type).
+ */
+class ObjectIndex {
+    static final int CLASS_OBJECT = -1;
+    /** Size placeholder for instances, resolved by freeze() from setClassSize(). */
+    static final int CLASS_SIZE = -1;
+    /** Size placeholder for an object whose size is in largeSizes. */
+    private static final int LARGE_SIZE = -2;
+
+    /** Shallow size of an array by element type, 2 for references, and length. */
+    interface ArraySizes {
+        long arraySize(int type, int length);
+    }
+
+    private static final int RADIX_BITS = 8;
+    private static final int BUCKETS = 1 << RADIX_BITS;
+    private static final int MIN_PARTITION = 1 << 16;
+
+    private LongColumn ids = new LongColumn();
+    private LongColumn offsets = new LongColumn();
+    private IntColumn classOrds = new IntColumn();
+    private IntColumn sizes = new IntColumn();
+    private int n;
+    private boolean frozen;
+
+    private final LongIntHashMap classKeys = new LongIntHashMap();
+    private long[] classIds = new long[256];
+    private int[] classSizes = new int[256];
+    private int nClasses;
+    private final Map<Long,Long> largeSizes = new HashMap<>();
+    private ArraySizes arraySizes;
+
+    static int primArrayClassOrd(int type) {
+        return -2 - type;
+    }
+
+    static boolean isPrimArray(int classOrd) {
+        return classOrd < CLASS_OBJECT;
+    }
+
+    static int primArrayType(int classOrd) {
+        return -2 - classOrd;
+    }
+
+    /** Returns the dense class ordinal of a class id, assigning one on first use. */
+    int classOrd(long classId) {
+        int k = classKeys.get(classId);
+        if (k < 0) {
+            if (nClasses == classIds.length) {
+                classIds = Arrays.copyOf(classIds, nClasses * 2);
+                classSizes = Arrays.copyOf(classSizes, nClasses * 2);
+            }
+            k = nClasses++;
+            classIds[k] = classId;
+            classKeys.put(classId, k);
+        }
+        return k;
+    }
+
+    long classId(int classOrd) {
+        return classIds[classOrd];
+    }
+
+    int classCount() {
+        return nClasses;
+    }
+
+    /** Sets the shallow size of the instances of a class. */
+    void setClassSize(int classOrd, int size) {
+        classSizes[classOrd] = size;
+    }
+
+    /** Sets how freeze() sizes the arrays. */
+    void setArraySizes(ArraySizes arraySizes) {
+        this.arraySizes = arraySizes;
+    }
+
+    void add(long id, long offset, int classOrd, int size) {
+        if (frozen) {
+            throw new IllegalStateException("ObjectIndex is frozen");
+        }
+        if (n == Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("ObjectIndex is full (" + n + " objects)");
+        }
+        ids.set(n, id);
+        offsets.set(n, offset);
+        classOrds.set(n, classOrd);
+        sizes.set(n, size);
+        n++;
+    }
+
+    /** Adds an object or primitive array; its size is resolved by freeze(). */
+    void addArray(long id, long offset, int classOrd, int length) {
+        if (frozen) {
+            throw new IllegalStateException("ObjectIndex is frozen");
+        }
+        if (n == Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("ObjectIndex is full (" + n + " objects)");
+        }
+        ids.set(n, id);
+        offsets.set(n, offset);
+        classOrds.set(n, classOrd);
+        sizes.set(n, length);
+        n++;
+    }
+
+    int size() {
+        return n;
+    }
+
+    long id(int ord) {
+        return ids.get(ord);
+    }
+
+    /** Dump offset of the object's record, just past the sub-record tag. */
+    long offset(int ord) {
+        return offsets.get(ord);
+    }
+
+    int classOrdOf(int ord) {
+        return classOrds.get(ord);
+    }
+
+    long shallowSize(int ord) {
+        int size = sizes.get(ord);
+        return size == LARGE_SIZE ? largeSizes.get(ids.get(ord)) : size;
+    }
+
+    /**
+     * Returns the ordinal of id, or -1 if the dump has no such object.
+     * Ids are heap addresses, close to evenly spread, so a few
+     * interpolation steps usually land next to the row; binary search
+     * finishes the job.
+     */
+    int ordinal(long id) {
+        int lo = 0;
+        int hi = n - 1;
+        for (int step = 0; step < 4 && lo < hi; step++) {
+            long a = ids.get(lo);
+            long b = ids.get(hi);
+            if (Long.compareUnsigned(id, a) < 0 || Long.compareUnsigned(id, b) > 0) {
+                return -1;
+            }
+            double f = unsignedToDouble(id - a) / unsignedToDouble(b - a);
+            int mid = lo + (int) (f * (hi - lo));
+            int c = Long.compareUnsigned(ids.get(mid), id);
+            if (c == 0) {
+                return mid;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = Long.compareUnsigned(ids.get(mid), id);
+            if (c == 0) {
+                return mid;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static double unsignedToDouble(long v) {
+        double d = (double) (v >>> 1) * 2.0;
+        return d + (v & 1);
+    }
+
+    /**
+     * Sorts the rows by unsigned id, drops repeated ids and resolves the
+     * instance and array sizes.  Sorting needs a second set of columns
+     * while it runs.
+     */
+    void freeze() {
+        if (frozen) {
+            return;
+        }
+        sort();
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            long id = ids.get(i);
+            if (m > 0 && ids.get(m - 1) == id) {
+                continue;
+            }
+            if (m != i) {
+                ids.set(m, id);
+                offsets.set(m, offsets.get(i));
+                classOrds.set(m, classOrds.get(i));
+                sizes.set(m, sizes.get(i));
+            }
+            int c = classOrds.get(m);
+            int s = sizes.get(m);
+            if (c >= 0 && s == CLASS_SIZE) {
+                sizes.set(m, classSizes[c]);
+            } else if (c >= 0 || isPrimArray(c)) {
+                // an array, s is its length
+                long size = arraySizes.arraySize(c >= 0 ? 2 : primArrayType(c), s);
+                if (size > Integer.MAX_VALUE) {
+                    largeSizes.put(id, size);
+                    sizes.set(m, LARGE_SIZE);
+                } else {
+                    sizes.set(m, (int) size);
+                }
+            }
+            m++;
+        }
+        n = m;
+        frozen = true;
+    }
+
+    private void sort() {
+        if (n < 2) {
+            return;
+        }
+        int parts = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), n / MIN_PARTITION));
+        final int[] bounds = new int[parts + 1];
+        for (int p = 0; p <= parts; p++) {
+            bounds[p] = (int) ((long) n * p / parts);
+        }
+        LongColumn tIds = new LongColumn();
+        LongColumn tOffsets = new LongColumn();
+        IntColumn tClassOrds = new IntColumn();
+        IntColumn tSizes = new IntColumn();
+        tIds.ensure(n);
+        tOffsets.ensure(n);
+        tClassOrds.ensure(n);
+        tSizes.ensure(n);
+
+        final int[][] counts = new int[parts][BUCKETS];
+        for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+            final int s = shift;
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (int p = 0; p < parts; p++) {
+                final int part = p;
+                tasks.add(new RecursiveAction() {
+                    protected void compute() {
+                        int[] c = counts[part];
+                        Arrays.fill(c, 0);
+                        for (int i = bounds[part]; i < bounds[part + 1]; i++) {
+                            c[(int) (ids.get(i) >>> s) & (BUCKETS - 1)]++;
+                        }
+                    }
+                });
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            // a digit shared by all rows leaves the order unchanged
+            boolean uniform = false;
+            for (int d = 0; d < BUCKETS && !uniform; d++) {
+                int total = 0;
+                for (int p = 0; p < parts; p++) {
+                    total += counts[p][d];
+                }
+                uniform = total == n;
+            }
+            if (uniform) {
+                continue;
+            }
+            int next = 0;
+            for (int d = 0; d < BUCKETS; d++) {
+                for (int p = 0; p < parts; p++) {
+                    int c = counts[p][d];
+                    counts[p][d] = next;
+                    next += c;
+                }
+            }
+
+            final LongColumn dIds = tIds;
+            final LongColumn dOffsets = tOffsets;
+            final IntColumn dClassOrds = tClassOrds;
+            final IntColumn dSizes = tSizes;
+            tasks.clear();
+            for (int p = 0; p < parts; p++) {
+                final int part = p;
+                tasks.add(new RecursiveAction() {
+                    protected void compute() {
+                        int[] pos = counts[part];
+                        for (int i = bounds[part]; i < bounds[part + 1]; i++) {
+                            long id = ids.get(i);
+                            int j = pos[(int) (id >>> s) & (BUCKETS - 1)]++;
+                            dIds.set(j, id);
+                            dOffsets.set(j, offsets.get(i));
+                            dClassOrds.set(j, classOrds.get(i));
+                            dSizes.set(j, sizes.get(i));
+                        }
+                    }
+                });
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            LongColumn tl = ids; ids = tIds; tIds = tl;
+            tl = offsets; offsets = tOffsets; tOffsets = tl;
+            IntColumn ti = classOrds; classOrds = tClassOrds; tClassOrds = ti;
+            ti = sizes; sizes = tSizes; tSizes = ti;
+        }
+    }
+
+    /**
+     * Growable column of longs in direct buffers.  Fixed size chunks keep
+     * every buffer index within int range and make growing copy-free.
+     */
+    static class LongColumn {
+        private static final int SHIFT = 20;
+        private static final int MASK = (1 << SHIFT) - 1;
+        private ByteBuffer[] chunks = new ByteBuffer[16];
+
+        void ensure(int size) {
+            int need = (int) (((long) size + MASK) >>> SHIFT);
+            if (need > chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(need, chunks.length * 2));
+            }
+            for (int c = 0; c < need; c++) {
+                if (chunks[c] == null) {
+                    chunks[c] = ByteBuffer.allocateDirect(8 << SHIFT).order(ByteOrder.nativeOrder());
+                }
+            }
+        }
+
+        long get(int i) {
+            return chunks[i >>> SHIFT].getLong((i & MASK) << 3);
+        }
+
+        void set(int i, long v) {
+            if ((i & MASK) == 0) {
+                ensure(i + 1);
+            }
+            chunks[i >>> SHIFT].putLong((i & MASK) << 3, v);
+        }
+    }
+
+    /** Growable column of ints in direct buffers. */
+    static class IntColumn {
+        private static final int SHIFT = 20;
+        private static final int MASK = (1 << SHIFT) - 1;
+        private ByteBuffer[] chunks = new ByteBuffer[16];
+
+        void ensure(int size) {
+            int need = (int) (((long) size + MASK) >>> SHIFT);
+            if (need > chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(need, chunks.length * 2));
+            }
+            for (int c = 0; c < need; c++) {
+                if (chunks[c] == null) {
+                    chunks[c] = ByteBuffer.allocateDirect(4 << SHIFT).order(ByteOrder.nativeOrder());
+                }
+            }
+        }
+
+        int get(int i) {
+            return chunks[i >>> SHIFT].getInt((i & MASK) << 2);
+        }
+
+        void set(int i, int v) {
+            if ((i & MASK) == 0) {
+                ensure(i + 1);
+            }
+            chunks[i >>> SHIFT].putInt((i & MASK) << 2, v);
+        }
+    }
+}
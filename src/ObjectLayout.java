@@ -0,0 +1,132 @@
+/**
+ * Shallow sizes of objects as a HotSpot heap lays them out (-layout).
+ *
+ * An object is its header (mark word and class pointer), then its fields,
+ * then padding to the object alignment.  Instance fields of a class and
+ * its supers are packed largest first; when the header ends off an 8 byte
+ * boundary, as with a compressed class pointer, the gap before the first
+ * long or double is filled by a smaller field.  An array adds a 4 byte
+ * length after the header and starts its elements at their alignment.
+ *
+ * The hprof format records neither compressed oops nor the alignment, so
+ * detect() guesses them from the object ids, which are the addresses of
+ * the objects: a heap of compressed oops spans less than 4G times the
+ * alignment, wherever its base is, and every object starts at a multiple
+ * of the alignment.
+ */
+class ObjectLayout {
+    /** object ids needed before the alignment is judged by their low bits */
+    private static final int MIN_ALIGNMENT_SAMPLES = 64;
+
+    final String description;
+    final int markSize;
+    final int klassSize;
+    /** size of a reference field or object array element */
+    final int oopSize;
+    final int alignment;
+    private final int[] arrayBase = new int[12];
+
+    ObjectLayout(String description, int markSize, int klassSize, int oopSize, int alignment) {
+        this.description = description;
+        this.markSize = markSize;
+        this.klassSize = klassSize;
+        this.oopSize = oopSize;
+        this.alignment = alignment;
+        int lengthEnd = markSize + klassSize + 4;
+        for (int t = 2; t <= 11; t++) {
+            int elem = elementSize(t);
+            if (elem > 0) {
+                arrayBase[t] = (int) align(lengthEnd, elem == 8 || klassSize == 8 ? 8 : 4);
+            }
+        }
+    }
+
+    /**
+     * Returns the layout of a model name: 32 for a 32 bit JVM; coops for a
+     * 64 bit JVM with compressed oops and class pointers; noncoops with
+     * compressed class pointers only, the default of JDK 15 and later for
+     * heaps of 32 GB and more; uncompressed with neither.  Returns null for
+     * another name.
+     */
+    static ObjectLayout forModel(String model, int alignment) {
+        if (model.equals("32")) {
+            return new ObjectLayout("32-bit", 4, 4, 4, alignment);
+        } else if (model.equals("coops")) {
+            return new ObjectLayout("64-bit, compressed oops and class pointers", 8, 4, 4, alignment);
+        } else if (model.equals("noncoops")) {
+            return new ObjectLayout("64-bit, compressed class pointers", 8, 4, 8, alignment);
+        } else if (model.equals("uncompressed")) {
+            return new ObjectLayout("64-bit, uncompressed", 8, 8, 8, alignment);
+        }
+        return null;
+    }
+
+    static boolean isModel(String model) {
+        return forModel(model, 8) != null;
+    }
+
+    /**
+     * Guesses the layout of a dump from its id size and the object ids seen.
+     *
+     * @param minId smallest object id, unsigned
+     * @param maxId largest object id, unsigned
+     * @param idBits all object ids or'ed together
+     * @param samples number of object ids seen
+     * @param alignment the alignment to use, or 0 to guess it
+     */
+    static ObjectLayout detect(int idSize, long minId, long maxId, long idBits, long samples, int alignment) {
+        if (alignment == 0) {
+            alignment = 8;
+            if (samples >= MIN_ALIGNMENT_SAMPLES && idBits != 0) {
+                alignment = Math.max(8, Math.min(256, (int) Long.lowestOneBit(idBits)));
+            }
+        }
+        if (idSize == 4) {
+            return forModel("32", alignment);
+        }
+        // the span, not maxId: with a heap based mode the heap need not start near 0
+        boolean coops = Long.compareUnsigned(minId, maxId) > 0
+                || Long.compareUnsigned(maxId - minId, (1L << 32) * alignment) < 0;
+        return forModel(coops ? "coops" : "noncoops", alignment);
+    }
+
+    int elementSize(int type) {
+        return type == 2 ? oopSize : HprofConverter.primitiveTypeSize(type);
+    }
+
+    /**
+     * Size of an instance whose class and supers declare fields of these
+     * sizes: n8 of 8 bytes, n4 of 4 and so on, references included.
+     */
+    int instanceSize(int n8, int n4, int n2, int n1) {
+        int off = markSize + klassSize;
+        if (n8 > 0 && off % 8 != 0) {
+            int gap = 8 - off % 8;
+            if (gap >= 4 && n4 > 0) {
+                n4--;
+                gap -= 4;
+            }
+            for (; gap >= 2 && n2 > 0; gap -= 2) {
+                n2--;
+            }
+            for (; gap >= 1 && n1 > 0; gap--) {
+                n1--;
+            }
+            off = (int) align(off, 8);
+        }
+        off += 8 * n8 + 4 * n4 + 2 * n2 + n1;
+        return (int) align(off, alignment);
+    }
+
+    /** Size of an array of n elements of a basic type, 2 for references. */
+    long arraySize(int type, int n) {
+        if (type < 2 || type > 11 || elementSize(type) == 0) {
+            return 0;
+        }
+        return align(arrayBase[type] + (long) elementSize(type) * n, alignment);
+    }
+
+    private static long align(long n, int a) {
+        return (n + a - 1) / a * a;
+    }
+}
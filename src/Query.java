@@ -0,0 +1,626 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An OQL like query selecting instances of a class, e.g.
+ *
+ *   select s from java.lang.String s where s.value.length > 10000
+ *
+ * The where condition compares paths (the variable followed by field names,
+ * and length for arrays) with numbers, true, false and null, combined with
+ * and, or, not and parentheses.  The select list is the variable or paths.
+ *
+ * A parsed query is bound once per matching class after pass 1.  Binding
+ * turns the first field of every path into an offset and type from the
+ * class layout and the tree into evaluator objects, so testing an instance
+ * reads exactly the fields the condition needs and allocates nothing.
+ * Fields of referenced objects are found through the ObjectIndex offsets;
+ * their layouts are looked up once per class and cached in the path step.
+ * Without an index (compressed input) such references are unresolved and
+ * comparisons involving them are false.
+ */
+class Query {
+    /** Instance field layouts of the classes of the dump. */
+    interface Schema {
+        /**
+         * Returns the offset of an instance field of a class or its supers
+         * within the instance field values and stores its type in type[0],
+         * or returns -1 if there is no such field.
+         */
+        int fieldOffset(long classId, String name, byte[] type);
+    }
+
+    /** The dump and the instance being tested; also holds the value of the last operand evaluated. */
+    static class Context {
+        final HprofBuffer buf;
+        final ObjectIndex index;
+        final Schema schema;
+        final int idSize;
+        long id;
+        long fieldsPos;
+        long value;
+        byte type;
+
+        Context(HprofBuffer buf, ObjectIndex index, Schema schema, int idSize) {
+            this.buf = buf;
+            this.index = index;
+            this.schema = schema;
+            this.idSize = idSize;
+        }
+    }
+
+    /** A bound operand; eval() leaves the value in the context and returns false if it is undefined. */
+    abstract static class Operand {
+        abstract boolean eval(Context c);
+    }
+
+    /** A bound condition. */
+    abstract static class Condition {
+        abstract boolean test(Context c);
+    }
+
+    /** A query bound to one class. */
+    static class Bound {
+        final String className;
+        final Condition where;
+        final Operand[] selects;
+
+        Bound(String className, Condition where, Operand[] selects) {
+            this.className = className;
+            this.where = where;
+            this.selects = selects;
+        }
+
+        boolean test(Context c) {
+            return where == null || where.test(c);
+        }
+
+        void appendRow(StringBuilder sb, Context c) {
+            sb.append(className).append('\t').append(Long.toHexString(c.id));
+            for (Operand o : selects) {
+                sb.append('\t');
+                if (o.eval(c)) {
+                    FieldProjection.appendRaw(sb, c.type, c.value);
+                }
+            }
+        }
+    }
+
+    private static final int MISSING = -2;
+
+    final String className;
+    final String var;
+    private final List<Path> selects;
+    private final Cond where;
+
+    private Query(String className, String var, List<Path> selects, Cond where) {
+        this.className = className;
+        this.var = var;
+        this.selects = selects;
+        this.where = where;
+    }
+
+    String header() {
+        StringBuilder sb = new StringBuilder("class\tid");
+        for (Path p : selects) {
+            sb.append('\t').append(p.text);
+        }
+        return sb.toString();
+    }
+
+    /** Returns true if the query reads fields of objects other than the selected instances. */
+    boolean dereferences() {
+        for (Path p : selects) {
+            if (p.steps.length > 1) {
+                return true;
+            }
+        }
+        return where != null && where.dereferences();
+    }
+
+    /**
+     * Binds the query to a class.
+     *
+     * @throws IllegalArgumentException if the class lacks a field the query reads
+     */
+    Bound bind(String boundName, long classId, Schema schema) {
+        Operand[] ops = new Operand[selects.size()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = selects.get(i).bind(classId, schema);
+        }
+        return new Bound(boundName, where == null ? null : where.bind(classId, schema), ops);
+    }
+
+    // ---- unbound tree ----
+
+    private abstract static class Term {
+        abstract Operand bind(long classId, Schema schema);
+
+        boolean dereferences() {
+            return false;
+        }
+    }
+
+    private abstract static class Cond {
+        abstract Condition bind(long classId, Schema schema);
+
+        abstract boolean dereferences();
+    }
+
+    private static class Literal extends Term {
+        final byte type;
+        final long value;
+
+        Literal(byte type, long value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        Operand bind(long classId, Schema schema) {
+            return new Operand() {
+                @Override
+                boolean eval(Context c) {
+                    c.type = type;
+                    c.value = value;
+                    return true;
+                }
+            };
+        }
+    }
+
+    private static class Path extends Term {
+        final String text;
+        /** Field names after the variable. */
+        final String[] steps;
+
+        Path(String text, String[] steps) {
+            this.text = text;
+            this.steps = steps;
+        }
+
+        @Override
+        boolean dereferences() {
+            return steps.length > 1;
+        }
+
+        @Override
+        Operand bind(long classId, Schema schema) {
+            if (steps.length == 0) {
+                return new Operand() {
+                    @Override
+                    boolean eval(Context c) {
+                        c.type = 2;
+                        c.value = c.id;
+                        return true;
+                    }
+                };
+            }
+            byte[] t = new byte[1];
+            final int offset = schema.fieldOffset(classId, steps[0], t);
+            if (offset < 0) {
+                throw new IllegalArgumentException("no instance field " + steps[0]);
+            }
+            final byte type = t[0];
+            final Step[] rest = new Step[steps.length - 1];
+            for (int i = 0; i < rest.length; i++) {
+                rest[i] = new Step(steps[i + 1]);
+            }
+            if (rest.length == 0) {
+                return new Operand() {
+                    @Override
+                    boolean eval(Context c) {
+                        c.type = type;
+                        c.value = FieldProjection.readRaw(c.buf, c.fieldsPos + offset, type, c.idSize);
+                        return true;
+                    }
+                };
+            }
+            return new Operand() {
+                @Override
+                boolean eval(Context c) {
+                    c.type = type;
+                    c.value = FieldProjection.readRaw(c.buf, c.fieldsPos + offset, type, c.idSize);
+                    for (Step s : rest) {
+                        if (!s.deref(c)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+    }
+
+    /** A field read on a referenced object, whose class is only known when it is read. */
+    private static class Step {
+        final String name;
+        final boolean length;
+        /** class id -> offset << 4 | type, or MISSING */
+        final LongIntHashMap layouts = new LongIntHashMap();
+        final byte[] type = new byte[1];
+
+        Step(String name) {
+            this.name = name;
+            this.length = name.equals("length");
+        }
+
+        /** Replaces the object id in the context by the value of the field; false if undefined. */
+        boolean deref(Context c) {
+            if (c.type != 2 || c.value == 0 || c.index == null) {
+                return false;
+            }
+            int ord = c.index.ordinal(c.value);
+            if (ord < 0) {
+                return false;
+            }
+            long pos = c.index.offset(ord);
+            byte tag = c.buf.get(pos - 1);
+            int idSize = c.idSize;
+            if (tag == HprofConverter.HPROF_GC_INSTANCE_DUMP) {
+                long classId = idSize == 4 ? c.buf.getInt(pos + idSize + 4) & 0xffffffffL : c.buf.getLong(pos + idSize + 4);
+                int layout = layouts.get(classId);
+                if (layout == -1) {
+                    int offset = c.schema.fieldOffset(classId, name, type);
+                    layout = offset < 0 ? MISSING : offset << 4 | type[0];
+                    layouts.put(classId, layout);
+                }
+                if (layout == MISSING) {
+                    return false;
+                }
+                c.type = (byte) (layout & 0xf);
+                c.value = FieldProjection.readRaw(c.buf, pos + 2 * idSize + 8 + (layout >>> 4), c.type, idSize);
+                return true;
+            }
+            if (length && (tag == HprofConverter.HPROF_GC_OBJ_ARRAY_DUMP || tag == HprofConverter.HPROF_GC_PRIM_ARRAY_DUMP)) {
+                c.type = 10;
+                c.value = c.buf.getInt(pos + idSize + 4);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+    private static final String[] OPS = { "==", "!=", "<", "<=", ">", ">=" };
+
+    private static class Comparison extends Cond {
+        final int op;
+        final Term left;
+        final Term right;
+
+        Comparison(int op, Term left, Term right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean dereferences() {
+            return left.dereferences() || right.dereferences();
+        }
+
+        @Override
+        Condition bind(long classId, Schema schema) {
+            final Operand l = left.bind(classId, schema);
+            final Operand r = right.bind(classId, schema);
+            return new Condition() {
+                @Override
+                boolean test(Context c) {
+                    if (!l.eval(c)) {
+                        return false;
+                    }
+                    long lv = c.value;
+                    byte lt = c.type;
+                    if (!r.eval(c)) {
+                        return false;
+                    }
+                    int cmp;
+                    if (isFloating(lt) || isFloating(c.type)) {
+                        cmp = Double.compare(asDouble(lt, lv), asDouble(c.type, c.value));
+                    } else {
+                        cmp = Long.compare(lv, c.value);
+                    }
+                    switch (op) {
+                        case EQ: return cmp == 0;
+                        case NE: return cmp != 0;
+                        case LT: return cmp < 0;
+                        case LE: return cmp <= 0;
+                        case GT: return cmp > 0;
+                        default: return cmp >= 0;
+                    }
+                }
+            };
+        }
+    }
+
+    private static boolean isFloating(byte type) {
+        return type == 6 || type == 7;
+    }
+
+    private static double asDouble(byte type, long raw) {
+        if (type == 6) {
+            return Float.intBitsToFloat((int) raw);
+        }
+        if (type == 7) {
+            return Double.longBitsToDouble(raw);
+        }
+        return raw;
+    }
+
+    private static class Junction extends Cond {
+        final boolean and;
+        final Cond left;
+        final Cond right;
+
+        Junction(boolean and, Cond left, Cond right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean dereferences() {
+            return left.dereferences() || right.dereferences();
+        }
+
+        @Override
+        Condition bind(long classId, Schema schema) {
+            final Condition l = left.bind(classId, schema);
+            final Condition r = right.bind(classId, schema);
+            if (and) {
+                return new Condition() {
+                    @Override
+                    boolean test(Context c) {
+                        return l.test(c) && r.test(c);
+                    }
+                };
+            }
+            return new Condition() {
+                @Override
+                boolean test(Context c) {
+                    return l.test(c) || r.test(c);
+                }
+            };
+        }
+    }
+
+    private static class Negation extends Cond {
+        final Cond cond;
+
+        Negation(Cond cond) {
+            this.cond = cond;
+        }
+
+        @Override
+        boolean dereferences() {
+            return cond.dereferences();
+        }
+
+        @Override
+        Condition bind(long classId, Schema schema) {
+            final Condition inner = cond.bind(classId, schema);
+            return new Condition() {
+                @Override
+                boolean test(Context c) {
+                    return !inner.test(c);
+                }
+            };
+        }
+    }
+
+    // ---- parser ----
+
+    /**
+     * Parses a query.
+     *
+     * @throws IllegalArgumentException on a syntax error
+     */
+    static Query parse(String text) {
+        return new Parser(text).query();
+    }
+
+    private static class Parser {
+        final String text;
+        int pos;
+        String token;
+
+        Parser(String text) {
+            this.text = text;
+            next();
+        }
+
+        Query query() {
+            expectKeyword("select");
+            List<String> selectTexts = new ArrayList<>();
+            selectTexts.add(identifier());
+            while (token.equals(",")) {
+                next();
+                selectTexts.add(identifier());
+            }
+            expectKeyword("from");
+            String className = identifier();
+            String var = identifier();
+            if (var.indexOf('.') >= 0 || isReservedWord(var)) {
+                throw error("bad variable name " + var);
+            }
+            Cond where = null;
+            if (isKeyword("where")) {
+                next();
+                where = or(var);
+            }
+            if (token.length() > 0) {
+                throw error("unexpected " + token);
+            }
+            List<Path> selects = new ArrayList<>();
+            for (String s : selectTexts) {
+                Path p = path(s, var);
+                if (p.steps.length > 0) {
+                    selects.add(p);
+                }
+            }
+            return new Query(className, var, selects, where);
+        }
+
+        Cond or(String var) {
+            Cond c = and(var);
+            while (isKeyword("or") || token.equals("||")) {
+                next();
+                c = new Junction(false, c, and(var));
+            }
+            return c;
+        }
+
+        Cond and(String var) {
+            Cond c = unary(var);
+            while (isKeyword("and") || token.equals("&&")) {
+                next();
+                c = new Junction(true, c, unary(var));
+            }
+            return c;
+        }
+
+        Cond unary(String var) {
+            if (isKeyword("not") || token.equals("!")) {
+                next();
+                return new Negation(unary(var));
+            }
+            if (token.equals("(")) {
+                next();
+                Cond c = or(var);
+                if (!token.equals(")")) {
+                    throw error("expected )");
+                }
+                next();
+                return c;
+            }
+            Term left = term(var);
+            int op = -1;
+            for (int i = 0; i < OPS.length; i++) {
+                if (token.equals(OPS[i])) {
+                    op = i;
+                }
+            }
+            if (token.equals("=")) {
+                op = EQ;
+            } else if (token.equals("<>")) {
+                op = NE;
+            }
+            if (op < 0) {
+                throw error("expected a comparison operator");
+            }
+            next();
+            return new Comparison(op, left, term(var));
+        }
+
+        Term term(String var) {
+            String t = token;
+            if (t.length() == 0) {
+                throw error("unexpected end of query");
+            }
+            char ch = t.charAt(0);
+            if (Character.isDigit(ch) || ch == '-') {
+                next();
+                try {
+                    if (t.startsWith("0x") || t.startsWith("0X")) {
+                        return new Literal((byte) 11, Long.parseUnsignedLong(t.substring(2), 16));
+                    }
+                    if (t.indexOf('.') >= 0 || t.indexOf('e') >= 0 || t.indexOf('E') >= 0) {
+                        return new Literal((byte) 7, Double.doubleToLongBits(Double.parseDouble(t)));
+                    }
+                    return new Literal((byte) 11, Long.parseLong(t));
+                } catch (NumberFormatException nfe) {
+                    throw error("bad number " + t);
+                }
+            }
+            if (t.equalsIgnoreCase("null")) {
+                next();
+                return new Literal((byte) 2, 0);
+            }
+            if (t.equalsIgnoreCase("true") || t.equalsIgnoreCase("false")) {
+                next();
+                return new Literal((byte) 4, t.equalsIgnoreCase("true") ? 1 : 0);
+            }
+            return path(identifier(), var);
+        }
+
+        Path path(String t, String var) {
+            String[] parts = t.split("\\.", -1);
+            if (!parts[0].equals(var)) {
+                throw error("unknown variable in " + t);
+            }
+            String[] steps = new String[parts.length - 1];
+            for (int i = 0; i < steps.length; i++) {
+                if (parts[i + 1].length() == 0) {
+                    throw error("bad path " + t);
+                }
+                steps[i] = parts[i + 1];
+            }
+            return new Path(t, steps);
+        }
+
+        String identifier() {
+            String t = token;
+            if (t.length() == 0 || !isIdentifierChar(t.charAt(0)) || Character.isDigit(t.charAt(0))) {
+                throw error("expected a name but got " + (t.length() == 0 ? "end of query" : t));
+            }
+            next();
+            return t;
+        }
+
+        void expectKeyword(String k) {
+            if (!isKeyword(k)) {
+                throw error("expected " + k);
+            }
+            next();
+        }
+
+        boolean isKeyword(String k) {
+            return token.equalsIgnoreCase(k);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("query: " + message + " at offset " + pos + ": " + text);
+        }
+
+        /** Reads the next token; the empty string at the end. */
+        void next() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            int start = pos;
+            if (pos == text.length()) {
+                token = "";
+                return;
+            }
+            char ch = text.charAt(pos);
+            if (isIdentifierChar(ch) || (ch == '-' && pos + 1 < text.length() && Character.isDigit(text.charAt(pos + 1)))) {
+                pos++;
+                while (pos < text.length() && isIdentifierChar(text.charAt(pos))) {
+                    pos++;
+                }
+            } else if ("=!<>&|".indexOf(ch) >= 0) {
+                pos++;
+                if (pos < text.length() && "=<>&|".indexOf(text.charAt(pos)) >= 0) {
+                    pos++;
+                }
+            } else {
+                pos++;
+            }
+            token = text.substring(start, pos);
+        }
+
+        static boolean isIdentifierChar(char ch) {
+            return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$' || ch == '.' || ch == '/';
+        }
+    }
+
+    private static boolean isReservedWord(String t) {
+        for (String k : new String[] { "select", "from", "where", "and", "or", "not" }) {
+            if (t.equalsIgnoreCase(k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * LSD radix sort of unsigned 64-bit keys carrying a parallel value array.
+ * Byte positions on which all keys agree are skipped, which makes the
+ * common case of object ids sharing their high bytes cheap.
+ */
+class RadixSort {
+
+    private RadixSort() {
+    }
+
+    /**
+     * Sorts keys[0..n) in unsigned order, permuting values the same way.
+     * tmpKeys and tmpValues must hold at least n entries.
+     */
+    static void sort(long[] keys, long[] values, int n, long[] tmpKeys, long[] tmpValues) {
+        if (n < 2) {
+            return;
+        }
+        long[] srcK = keys, srcV = values, dstK = tmpKeys, dstV = tmpValues;
+        int[] count = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            java.util.Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++) {
+                count[(int) (srcK[i] >>> shift) & 0xff]++;
+            }
+            if (count[(int) (srcK[0] >>> shift) & 0xff] == n) {
+                continue;
+            }
+            int sum = 0;
+            for (int b = 0; b < 256; b++) {
+                int c = count[b];
+                count[b] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int pos = count[(int) (srcK[i] >>> shift) & 0xff]++;
+                dstK[pos] = srcK[i];
+                dstV[pos] = srcV[i];
+            }
+            long[] t = srcK; srcK = dstK; dstK = t;
+            t = srcV; srcV = dstV; dstV = t;
+        }
+        if (srcK != keys) {
+            System.arraycopy(srcK, 0, keys, 0, n);
+            System.arraycopy(srcV, 0, values, 0, n);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Errors met in a corrupt dump under -recover and where parsing resumed
+ * after each.
+ *
+ * Pass 1 searches the resume points.  Pass 2 meets the same errors at the
+ * same offsets and reuses them, so both passes decode the same records
+ * even though pass 2 knows more classes when judging what is plausible.
+ */
+class Recovery {
+    private static final Logger logger = Logger.getLogger(Recovery.class.getName());
+    private static final int MAX_LISTED = 20;
+
+    private final Map<Long,Long> resumeAt = new HashMap<>();
+    private final List<String> listed = new ArrayList<>();
+    private int errors;
+    private long skippedBytes;
+
+    /** Returns where parsing resumed after the error at pos, or -1 if none was recorded. */
+    long resumePosition(long pos) {
+        Long r = resumeAt.get(pos);
+        return r == null ? -1 : r;
+    }
+
+    /** Records an error at pos after which parsing resumes at resume. */
+    void record(long pos, long resume, String what) {
+        resumeAt.put(pos, resume);
+        errors++;
+        skippedBytes += resume - pos;
+        String msg = "offset " + pos + ": " + what + "; " + (resume - pos) + " bytes skipped";
+        if (listed.size() < MAX_LISTED) {
+            listed.add(msg);
+            logger.warning(msg);
+        }
+    }
+
+    int errorCount() {
+        return errors;
+    }
+
+    void print() {
+        System.out.println("Recovered from " + errors + (errors == 1 ? " error" : " errors") + ", skipping "
+                + skippedBytes + " bytes; the reports above cover the records that could be read");
+        for (String s : listed) {
+            System.out.println("  " + s);
+        }
+        if (errors > listed.size()) {
+            System.out.println("  ... " + (errors - listed.size()) + " more");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Growable byte storage of a table, addressed by long positions.
+ *
+ * Storage is a list of fixed size chunks.  Chunks are allocated on the heap
+ * while the memory budget grants them to the table; the first refusal moves
+ * every chunk to a memory mapped scratch file, where the buffer stays.
+ * Reads and writes look the same either way.
+ */
+class SpillBuffer {
+    private static final ByteBuffer[] NONE = new ByteBuffer[0];
+
+    private final MemoryBudget budget;
+    private final int table;
+    private final int chunkBits;
+    private final int chunkSize;
+    private ByteBuffer[] chunks = NONE;
+    private FileChannel channel;
+
+    /**
+     * @param chunkBits log2 of the chunk size; at least 3 so that aligned
+     *        longs never cross a chunk
+     */
+    SpillBuffer(MemoryBudget budget, int table, int chunkBits) {
+        this.budget = budget;
+        this.table = table;
+        this.chunkBits = chunkBits;
+        this.chunkSize = 1 << chunkBits;
+    }
+
+    long capacity() {
+        return (long) chunks.length << chunkBits;
+    }
+
+    boolean isSpilled() {
+        return channel != null;
+    }
+
+    void ensureCapacity(long size) {
+        while (capacity() < size) {
+            addChunk();
+        }
+    }
+
+    private void addChunk() {
+        int c = chunks.length;
+        chunks = Arrays.copyOf(chunks, c + 1);
+        if (channel == null && budget.reserve(table, chunkSize)) {
+            chunks[c] = ByteBuffer.allocate(chunkSize);
+            return;
+        }
+        try {
+            if (channel == null) {
+                spill(c);
+            }
+            chunks[c] = map(c);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("cannot extend scratch file: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /** Moves the first n chunks from the heap to a scratch file. */
+    private void spill(int n) throws IOException {
+        long t0 = System.nanoTime();
+        channel = budget.scratchChannel();
+        for (int c = 0; c < n; c++) {
+            ByteBuffer m = map(c);
+            ByteBuffer h = chunks[c].duplicate();
+            h.clear();
+            m.put(h);
+            m.clear();
+            chunks[c] = m;
+        }
+        budget.release(table, (long) n * chunkSize);
+        budget.spilled(table, System.nanoTime() - t0);
+    }
+
+    private ByteBuffer map(int c) throws IOException {
+        ByteBuffer m = channel.map(FileChannel.MapMode.READ_WRITE, (long) c << chunkBits, chunkSize);
+        budget.mapped(table, chunkSize);
+        return m;
+    }
+
+    /** Reads an 8 byte aligned long. */
+    long getLong(long pos) {
+        return chunks[(int) (pos >>> chunkBits)].getLong((int) pos & (chunkSize - 1));
+    }
+
+    /** Writes an 8 byte aligned long. */
+    void putLong(long pos, long v) {
+        chunks[(int) (pos >>> chunkBits)].putLong((int) pos & (chunkSize - 1), v);
+    }
+
+    int getInt(long pos) {
+        int off = (int) pos & (chunkSize - 1);
+        if (off + 4 <= chunkSize) {
+            return chunks[(int) (pos >>> chunkBits)].getInt(off);
+        }
+        byte[] b = new byte[4];
+        get(pos, b);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    void putInt(long pos, int v) {
+        int off = (int) pos & (chunkSize - 1);
+        if (off + 4 <= chunkSize) {
+            chunks[(int) (pos >>> chunkBits)].putInt(off, v);
+            return;
+        }
+        put(pos, new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v });
+    }
+
+    void get(long pos, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            ByteBuffer b = chunks[(int) (pos >>> chunkBits)].duplicate();
+            int off = (int) pos & (chunkSize - 1);
+            int n = Math.min(dst.length - done, chunkSize - off);
+            b.position(off);
+            b.get(dst, done, n);
+            done += n;
+            pos += n;
+        }
+    }
+
+    void put(long pos, byte[] src) {
+        int done = 0;
+        while (done < src.length) {
+            ByteBuffer b = chunks[(int) (pos >>> chunkBits)].duplicate();
+            int off = (int) pos & (chunkSize - 1);
+            int n = Math.min(src.length - done, chunkSize - off);
+            b.position(off);
+            b.put(src, done, n);
+            done += n;
+            pos += n;
+        }
+    }
+
+    /** Drops the storage and returns its heap to the budget. */
+    void free() {
+        if (channel == null) {
+            budget.release(table, capacity());
+        } else {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            channel = null;
+        }
+        chunks = NONE;
+    }
+}
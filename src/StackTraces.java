@@ -0,0 +1,288 @@
+import java.util.Arrays;
+
+/**
+ * Stack trace data of a dump: LOAD_CLASS serials, FRAME, TRACE and
+ * START_THREAD records.
+ *
+ * Class, trace and thread serial numbers are small integers assigned by the
+ * VM, so they index plain arrays directly.  Frames are identified by ids and
+ * mapped to dense ordinals once, when the FRAME record is read; traces keep
+ * frame ordinals in one shared int array.  Stack roots are grouped by
+ * thread and frame depth with one radix sort before they are reported.
+ */
+class StackTraces {
+    /** Serials above this are not indexed; real dumps stay far below it. */
+    static final int MAX_SERIAL = 1 << 24;
+
+    private long[] classBySerial = new long[1024];
+
+    private final LongIntHashMap frameOrds = new LongIntHashMap();
+    private int nFrames;
+    private long[] frameMethod = new long[256];
+    private long[] frameSource = new long[256];
+    private int[] frameClassSerial = new int[256];
+    private int[] frameLine = new int[256];
+
+    private int[] traceStart = new int[256];
+    private int[] traceLength = filled(256);   // -1: no such trace
+    private int[] traceFrames = new int[1024];
+    private int nTraceFrames;
+
+    private int nStackRoots;
+    private long[] stackRootObj = new long[64];
+    private byte[] stackRootKind = new byte[64];
+    private int[] stackRootThread = new int[64];
+    private int[] stackRootDepth = new int[64];
+    private long[] stackRootClass = new long[64];   // class id, or -type for primitive arrays
+    private int[] stackRootNext = new int[64];
+    private final LongIntHashMap stackRootIndex = new LongIntHashMap();
+    /** stack root indexes by thread, then depth, then dump order; null until grouped */
+    private int[] stackRootOrder;
+
+    private long[] threadObj = new long[64];
+    private int[] threadTrace = new int[64];
+    private long[] threadName = new long[64];
+    private int[] threadSerials = new int[64];
+    private int nThreads;
+
+    private static int[] filled(int n) {
+        int[] a = new int[n];
+        Arrays.fill(a, -1);
+        return a;
+    }
+
+    private static int capacity(int serial, int len) {
+        while (len <= serial) {
+            len *= 2;
+        }
+        return len;
+    }
+
+    static boolean validSerial(int serial) {
+        return serial >= 0 && serial < MAX_SERIAL;
+    }
+
+    void addClass(int serial, long classId) {
+        if (!validSerial(serial)) {
+            return;
+        }
+        if (serial >= classBySerial.length) {
+            classBySerial = Arrays.copyOf(classBySerial, capacity(serial, classBySerial.length));
+        }
+        classBySerial[serial] = classId;
+    }
+
+    /** Returns the class object id for a class serial number, or 0. */
+    long classId(int serial) {
+        return validSerial(serial) && serial < classBySerial.length ? classBySerial[serial] : 0;
+    }
+
+    void addFrame(long frameId, long method, long source, int classSerial, int line) {
+        if (nFrames == frameMethod.length) {
+            int len = nFrames * 2;
+            frameMethod = Arrays.copyOf(frameMethod, len);
+            frameSource = Arrays.copyOf(frameSource, len);
+            frameClassSerial = Arrays.copyOf(frameClassSerial, len);
+            frameLine = Arrays.copyOf(frameLine, len);
+        }
+        frameMethod[nFrames] = method;
+        frameSource[nFrames] = source;
+        frameClassSerial[nFrames] = classSerial;
+        frameLine[nFrames] = line;
+        frameOrds.put(frameId, nFrames);
+        nFrames++;
+    }
+
+    /** Returns the frame ordinal of frameId, or -1. */
+    int frameOrd(long frameId) {
+        return frameOrds.get(frameId);
+    }
+
+    long frameMethod(int ord) {
+        return frameMethod[ord];
+    }
+
+    long frameSource(int ord) {
+        return frameSource[ord];
+    }
+
+    long frameClassId(int ord) {
+        return classId(frameClassSerial[ord]);
+    }
+
+    int frameLine(int ord) {
+        return frameLine[ord];
+    }
+
+    /** Starts a trace; its frames follow through addTraceFrame(). */
+    void beginTrace(int serial) {
+        if (serial >= traceLength.length) {
+            int len = capacity(serial, traceLength.length);
+            int old = traceLength.length;
+            traceStart = Arrays.copyOf(traceStart, len);
+            traceLength = Arrays.copyOf(traceLength, len);
+            Arrays.fill(traceLength, old, len, -1);
+        }
+        traceStart[serial] = nTraceFrames;
+        traceLength[serial] = 0;
+    }
+
+    void addTraceFrame(int serial, long frameId) {
+        if (nTraceFrames == traceFrames.length) {
+            traceFrames = Arrays.copyOf(traceFrames, nTraceFrames * 2);
+        }
+        traceFrames[nTraceFrames++] = frameOrd(frameId);
+        traceLength[serial]++;
+    }
+
+    boolean hasTrace(int serial) {
+        return validSerial(serial) && serial < traceLength.length && traceLength[serial] >= 0;
+    }
+
+    int traceDepth(int serial) {
+        return traceLength[serial];
+    }
+
+    /** Returns the ordinal of frame depth of a trace (0 is the top), or -1 if unknown. */
+    int traceFrame(int serial, int depth) {
+        return traceFrames[traceStart[serial] + depth];
+    }
+
+    /** Records a GC root held by a thread stack at the given frame depth. */
+    void addStackRoot(long obj, byte kind, int thread, int depth) {
+        if (nStackRoots == stackRootObj.length) {
+            int len = nStackRoots * 2;
+            stackRootObj = Arrays.copyOf(stackRootObj, len);
+            stackRootKind = Arrays.copyOf(stackRootKind, len);
+            stackRootThread = Arrays.copyOf(stackRootThread, len);
+            stackRootDepth = Arrays.copyOf(stackRootDepth, len);
+            stackRootClass = Arrays.copyOf(stackRootClass, len);
+            stackRootNext = Arrays.copyOf(stackRootNext, len);
+        }
+        int i = nStackRoots++;
+        stackRootObj[i] = obj;
+        stackRootKind[i] = kind;
+        stackRootThread[i] = thread;
+        stackRootDepth[i] = depth;
+        stackRootNext[i] = obj == 0 ? -1 : stackRootIndex.get(obj);
+        if (obj != 0) {
+            stackRootIndex.put(obj, i);
+        }
+        stackRootOrder = null;
+    }
+
+    /** Returns the index of the k-th stack root by thread, frame depth and dump order. */
+    int stackRootAt(int k) {
+        if (stackRootOrder == null) {
+            long[] keys = new long[nStackRoots];
+            long[] values = new long[nStackRoots];
+            for (int i = 0; i < nStackRoots; i++) {
+                // signed thread and depth, flipped to sort as unsigned
+                keys[i] = ((long) (stackRootThread[i] ^ Integer.MIN_VALUE) << 32)
+                        | ((stackRootDepth[i] ^ Integer.MIN_VALUE) & 0xffffffffL);
+                values[i] = i;
+            }
+            RadixSort.sort(keys, values, nStackRoots, new long[nStackRoots], new long[nStackRoots]);
+            stackRootOrder = new int[nStackRoots];
+            for (int j = 0; j < nStackRoots; j++) {
+                stackRootOrder[j] = (int) values[j];
+            }
+        }
+        return stackRootOrder[k];
+    }
+
+    boolean isStackRoot(long obj) {
+        return nStackRoots > 0 && stackRootIndex.containsKey(obj);
+    }
+
+    /** Notes the class of a stack root object, found later in the heap dump. */
+    void setStackRootClass(long obj, long classId) {
+        for (int i = stackRootIndex.get(obj); i >= 0; i = stackRootNext[i]) {
+            stackRootClass[i] = classId;
+        }
+    }
+
+    int stackRootCount() {
+        return nStackRoots;
+    }
+
+    long stackRootObj(int i) {
+        return stackRootObj[i];
+    }
+
+    byte stackRootKind(int i) {
+        return stackRootKind[i];
+    }
+
+    int stackRootThread(int i) {
+        return stackRootThread[i];
+    }
+
+    int stackRootDepth(int i) {
+        return stackRootDepth[i];
+    }
+
+    long stackRootClass(int i) {
+        return stackRootClass[i];
+    }
+
+    void addThread(int serial, long obj, int trace, long name) {
+        if (serial >= threadObj.length) {
+            int len = capacity(serial, threadObj.length);
+            threadObj = Arrays.copyOf(threadObj, len);
+            threadTrace = Arrays.copyOf(threadTrace, len);
+            threadName = Arrays.copyOf(threadName, len);
+        }
+        if (threadObj[serial] == 0) {
+            if (nThreads == threadSerials.length) {
+                threadSerials = Arrays.copyOf(threadSerials, nThreads * 2);
+            }
+            threadSerials[nThreads++] = serial;
+        }
+        threadObj[serial] = obj;
+        threadTrace[serial] = trace;
+        threadName[serial] = name;
+    }
+
+    /** Records thread data from a THREAD_OBJ root unless START_THREAD did already. */
+    void addThreadRoot(int serial, long obj, int trace) {
+        if (validSerial(serial) && !hasThread(serial)) {
+            addThread(serial, obj, trace, 0);
+        }
+    }
+
+    boolean hasThread(int serial) {
+        return validSerial(serial) && serial < threadObj.length && threadObj[serial] != 0;
+    }
+
+    /** Returns the valid serials of the threads known or holding stack roots, ascending. */
+    int[] threadSerials() {
+        int[] s = Arrays.copyOf(threadSerials, nThreads + nStackRoots);
+        int n = nThreads;
+        for (int i = 0; i < nStackRoots; i++) {
+            if (validSerial(stackRootThread[i])) {
+                s[n++] = stackRootThread[i];
+            }
+        }
+        Arrays.sort(s, 0, n);
+        int u = 0;
+        for (int i = 0; i < n; i++) {
+            if (u == 0 || s[i] != s[u - 1]) {
+                s[u++] = s[i];
+            }
+        }
+        return Arrays.copyOf(s, u);
+    }
+
+    long threadObj(int serial) {
+        return threadObj[serial];
+    }
+
+    int threadTrace(int serial) {
+        return threadTrace[serial];
+    }
+
+    long threadName(int serial) {
+        return threadName[serial];
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * Static field and constant pool values of the classes of a dump.
+ *
+ * Values are decoded from CLASS_DUMP records into shared primitive arrays,
+ * so recording them allocates nothing per class beyond occasional array
+ * growth.  A value is kept as its raw bits in a long: object ids,
+ * integral values sign extended, float and double as their IEEE bits.
+ * The entries of one class are contiguous and found through its slot.
+ */
+class StaticValues {
+    private final LongIntHashMap slots = new LongIntHashMap();
+    private int nClasses;
+    private long[] classIds = new long[256];
+    private int[] staticStart = new int[256];
+    private int[] staticCount = new int[256];
+    private int[] cpStart = new int[256];
+    private int[] cpCount = new int[256];
+
+    private int nStatics;
+    private long[] staticNames = new long[1024];
+    private byte[] staticTypes = new byte[1024];
+    private long[] staticValues = new long[1024];
+
+    private int nConstants;
+    private int[] cpIndexes = new int[64];
+    private byte[] cpTypes = new byte[64];
+    private long[] cpValues = new long[64];
+
+    private int current = -1;
+
+    /** Starts the entries of a class; its constant pool comes first, as in the dump. */
+    void beginClass(long classId) {
+        if (nClasses == classIds.length) {
+            int len = nClasses * 2;
+            classIds = Arrays.copyOf(classIds, len);
+            staticStart = Arrays.copyOf(staticStart, len);
+            staticCount = Arrays.copyOf(staticCount, len);
+            cpStart = Arrays.copyOf(cpStart, len);
+            cpCount = Arrays.copyOf(cpCount, len);
+        }
+        current = nClasses++;
+        classIds[current] = classId;
+        staticStart[current] = nStatics;
+        staticCount[current] = 0;
+        cpStart[current] = nConstants;
+        cpCount[current] = 0;
+        slots.put(classId, current);
+    }
+
+    void addConstant(int index, byte type, long value) {
+        if (nConstants == cpIndexes.length) {
+            int len = nConstants * 2;
+            cpIndexes = Arrays.copyOf(cpIndexes, len);
+            cpTypes = Arrays.copyOf(cpTypes, len);
+            cpValues = Arrays.copyOf(cpValues, len);
+        }
+        cpIndexes[nConstants] = index;
+        cpTypes[nConstants] = type;
+        cpValues[nConstants] = value;
+        nConstants++;
+        cpCount[current]++;
+    }
+
+    void addStatic(long nameId, byte type, long value) {
+        if (nStatics == staticNames.length) {
+            int len = nStatics * 2;
+            staticNames = Arrays.copyOf(staticNames, len);
+            staticTypes = Arrays.copyOf(staticTypes, len);
+            staticValues = Arrays.copyOf(staticValues, len);
+        }
+        staticNames[nStatics] = nameId;
+        staticTypes[nStatics] = type;
+        staticValues[nStatics] = value;
+        nStatics++;
+        staticCount[current]++;
+    }
+
+    int classCount() {
+        return nClasses;
+    }
+
+    long classId(int slot) {
+        return classIds[slot];
+    }
+
+    /** Returns the slot of a class, or -1 if it has no CLASS_DUMP. */
+    int slot(long classId) {
+        return slots.get(classId);
+    }
+
+    /** Index of the first static field of a class slot; fields are contiguous. */
+    int firstStatic(int slot) {
+        return staticStart[slot];
+    }
+
+    int staticCount(int slot) {
+        return staticCount[slot];
+    }
+
+    /** Returns the index of the static field nameId of a class, or -1. */
+    int findStatic(long classId, long nameId) {
+        int slot = slot(classId);
+        if (slot < 0) {
+            return -1;
+        }
+        for (int i = staticStart[slot], end = i + staticCount[slot]; i < end; i++) {
+            if (staticNames[i] == nameId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the index of the first object static of a class referring to target, or -1. */
+    int findReference(long classId, long target) {
+        int slot = slot(classId);
+        if (slot < 0) {
+            return -1;
+        }
+        for (int i = staticStart[slot], end = i + staticCount[slot]; i < end; i++) {
+            if (staticTypes[i] == 2 && staticValues[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    long staticName(int i) {
+        return staticNames[i];
+    }
+
+    byte staticType(int i) {
+        return staticTypes[i];
+    }
+
+    long staticValue(int i) {
+        return staticValues[i];
+    }
+
+    int firstConstant(int slot) {
+        return cpStart[slot];
+    }
+
+    int constantCount(int slot) {
+        return cpCount[slot];
+    }
+
+    int constantIndex(int i) {
+        return cpIndexes[i];
+    }
+
+    byte constantType(int i) {
+        return cpTypes[i];
+    }
+
+    long constantValue(int i) {
+        return cpValues[i];
+    }
+
+    static boolean asBoolean(long raw) {
+        return raw != 0;
+    }
+
+    static char asChar(long raw) {
+        return (char) raw;
+    }
+
+    static float asFloat(long raw) {
+        return Float.intBitsToFloat((int) raw);
+    }
+
+    static double asDouble(long raw) {
+        return Double.longBitsToDouble(raw);
+    }
+
+    /** Formats a raw value of a basic type for output. */
+    static String format(byte type, long raw) {
+        switch (type) {
+            case 2:
+                return raw == 0 ? "null" : Long.toHexString(raw);
+            case 4:
+                return String.valueOf(asBoolean(raw));
+            case 5:
+                return "'" + asChar(raw) + "' (" + (int) asChar(raw) + ")";
+            case 6:
+                return String.valueOf(asFloat(raw));
+            case 7:
+                return String.valueOf(asDouble(raw));
+            default:
+                return String.valueOf(raw);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte strings by id, such as the UTF8 records of a dump.  The bytes are
+ * appended to a SpillBuffer, prefixed by their length, and found through a
+ * LongLongMap; both count against the memory budget of the table.
+ */
+class StringTable {
+    private final LongLongMap index;
+    private final SpillBuffer data;
+    private long end;
+
+    StringTable(MemoryBudget budget, int table) {
+        index = new LongLongMap(budget, table);
+        data = new SpillBuffer(budget, table, 20);
+    }
+
+    long size() {
+        return index.size();
+    }
+
+    void put(long id, byte[] bytes) {
+        data.ensureCapacity(end + 4 + bytes.length);
+        data.putInt(end, bytes.length);
+        data.put(end + 4, bytes);
+        // positions are stored plus one, as 0 means absent
+        index.put(id, end + 1);
+        end += 4 + bytes.length;
+    }
+
+    /** Returns the bytes stored for id, or null. */
+    byte[] bytes(long id) {
+        long p = index.get(id) - 1;
+        if (p < 0) {
+            return null;
+        }
+        byte[] b = new byte[data.getInt(p)];
+        data.get(p + 4, b);
+        return b;
+    }
+
+    /** Returns the bytes stored for id decoded as UTF-8, or null. */
+    String get(long id) {
+        byte[] b = bytes(id);
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    void free() {
+        index.free();
+        data.free();
+        end = 0;
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Heap kept reachable by thread stacks.
+ *
+ * Objects reachable from the global roots (system classes, JNI globals,
+ * monitors, ...) are marked first; they stay alive whatever the threads
+ * do.  Then the roots of each thread (Java frames, JNI locals, native
+ * stack, thread block and the thread object) are marked without entering
+ * the globally reachable part.  Threads are marked in parallel on a fork
+ * join pool; an owner table shared by the tasks tells which objects are
+ * reachable from a single thread only.
+ */
+class ThreadRetention {
+    private static final int SHARED = -2;
+
+    static class Result {
+        final int thread;
+        int roots;
+        long objects;
+        long bytes;
+        long exclusiveObjects;
+        long exclusiveBytes;
+
+        Result(int thread) {
+            this.thread = thread;
+        }
+    }
+
+    private final HeapGraph graph;
+    private final int parallelism;
+
+    ThreadRetention(HeapGraph graph, int parallelism) {
+        this.graph = graph;
+        this.parallelism = parallelism;
+    }
+
+    /** Returns one result per thread serial having roots, in serial order. */
+    List<Result> compute() {
+        HeapGraph.IntList global = new HeapGraph.IntList();
+        List<Result> results = new ArrayList<>();
+        List<HeapGraph.IntList> seeds = new ArrayList<>();
+        LongIntHashMap threadIndex = new LongIntHashMap();
+        for (int i = 0; i < graph.rootCount(); i++) {
+            if (!HeapGraph.isThreadRootKind(graph.rootKind(i))) {
+                global.add(graph.rootOrd(i));
+                continue;
+            }
+            // serial 0 is a valid key here, so shift it by one
+            int t = graph.rootThread(i);
+            int ti = threadIndex.get(t + 1L);
+            if (ti < 0) {
+                ti = results.size();
+                threadIndex.put(t + 1L, ti);
+                results.add(new Result(t));
+                seeds.add(new HeapGraph.IntList());
+            }
+            seeds.get(ti).add(graph.rootOrd(i));
+            results.get(ti).roots++;
+        }
+
+        final BitSet globalMarked = graph.mark(global, null);
+        final AtomicIntegerArray owners = new AtomicIntegerArray(graph.size());
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            tasks.add(new MarkTask(i, seeds.get(i), results.get(i), globalMarked, owners));
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (RecursiveAction task : tasks) {
+                pool.execute(task);
+            }
+            for (RecursiveAction task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int o = 0; o < graph.size(); o++) {
+            int owner = owners.get(o) - 1;
+            if (owner >= 0) {
+                Result r = results.get(owner);
+                r.exclusiveObjects++;
+                r.exclusiveBytes += graph.shallowSize(o);
+            }
+        }
+        Collections.sort(results, new Comparator<Result>() {
+            public int compare(Result a, Result b) {
+                return Integer.compare(a.thread, b.thread);
+            }
+        });
+        return results;
+    }
+
+    private class MarkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private final HeapGraph.IntList seeds;
+        private final Result result;
+        private final BitSet globalMarked;
+        private final AtomicIntegerArray owners;
+
+        MarkTask(int index, HeapGraph.IntList seeds, Result result, BitSet globalMarked, AtomicIntegerArray owners) {
+            this.index = index;
+            this.seeds = seeds;
+            this.result = result;
+            this.globalMarked = globalMarked;
+            this.owners = owners;
+        }
+
+        protected void compute() {
+            BitSet marked = graph.mark(seeds, globalMarked);
+            // owners holds 0 for unmarked, index + 1 for a single owner
+            int own = index + 1;
+            for (int o = marked.nextSetBit(0); o >= 0; o = marked.nextSetBit(o + 1)) {
+                result.objects++;
+                result.bytes += graph.shallowSize(o);
+                if (!owners.compareAndSet(o, 0, own)) {
+                    int cur = owners.get(o);
+                    if (cur != own && cur != SHARED) {
+                        owners.set(o, SHARED);
+                    }
+                }
+            }
+        }
+    }
+}